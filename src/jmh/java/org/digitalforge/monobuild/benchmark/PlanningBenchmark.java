@@ -0,0 +1,121 @@
+package org.digitalforge.monobuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.digitalforge.monobuild.Project;
+import org.digitalforge.monobuild.graph.AffectedClosure;
+import org.digitalforge.monobuild.graph.ProjectGraph;
+import org.digitalforge.monobuild.helper.ConfigHelper;
+import org.digitalforge.monobuild.helper.ProjectHelper;
+import org.digitalforge.monobuild.index.ProjectIndexStore;
+import org.digitalforge.monobuild.logging.console.Console;
+
+// The planning steps every build goes through before running anything, over generated repos of increasing size.
+// "Cold" is a first run (or --rebuild-index), "indexed" is a later run in a new process with the index on disk, and
+// "warm" is the daemon, with the index already in memory.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PlanningBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int projects;
+
+    private SyntheticMonorepo repo;
+    private Path homeDir;
+    private Console console;
+    private ConfigHelper configHelper;
+    private ProjectIndexStore indexStore;
+    private ProjectHelper warmHelper;
+
+    private List<Project> allProjects;
+    private ProjectGraph dag;
+    private List<String> changedFiles;
+    private List<Project> changedProjects;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        repo = SyntheticMonorepo.create(projects, 42);
+        homeDir = Files.createTempDirectory("monobuild-bench-home-");
+
+        console = new Console();
+        configHelper = new ConfigHelper();
+        indexStore = new ProjectIndexStore(homeDir, "benchmark", console);
+        warmHelper = new ProjectHelper(console, configHelper, indexStore);
+
+        allProjects = warmHelper.listAllProjects(repo.root);
+        dag = warmHelper.getDependencyTree(allProjects, repo.root);
+
+        // A change touching 1% of the projects
+        changedFiles = repo.changedFiles(Math.max(1, projects / 100), 7);
+        changedProjects = warmHelper.getChangedProjects(allProjects, changedFiles, repo.root);
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repo.delete();
+    }
+
+    @Benchmark
+    public List<Project> listAllProjectsCold() throws IOException {
+        ProjectHelper helper = new ProjectHelper(console, configHelper, indexStore);
+        helper.deleteProjectIndex();
+        return helper.listAllProjects(repo.root);
+    }
+
+    @Benchmark
+    public List<Project> listAllProjectsIndexed() throws IOException {
+        return new ProjectHelper(console, configHelper, indexStore).listAllProjects(repo.root);
+    }
+
+    @Benchmark
+    public List<Project> listAllProjectsWarm() throws IOException {
+        return warmHelper.listAllProjects(repo.root);
+    }
+
+    @Benchmark
+    public List<Project> getChangedProjects() {
+        return warmHelper.getChangedProjects(allProjects, changedFiles, repo.root);
+    }
+
+    // No index, so every settings file is read and scanned
+    @Benchmark
+    public ProjectGraph getDependencyTreeCold() throws IOException {
+        return new ProjectHelper(console, configHelper, indexStore).getDependencyTree(allProjects, repo.root);
+    }
+
+    // Every settings file is only stat'ed against the index
+    @Benchmark
+    public ProjectGraph getDependencyTreeWarm() throws IOException {
+        return warmHelper.getDependencyTree(allProjects, repo.root);
+    }
+
+    @Benchmark
+    public List<Project> affectedClosure() {
+        return new AffectedClosure().getAffected(changedProjects, dag);
+    }
+
+}
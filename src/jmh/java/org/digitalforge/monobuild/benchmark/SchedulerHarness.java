@@ -0,0 +1,262 @@
+package org.digitalforge.monobuild.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import picocli.CommandLine;
+
+import org.digitalforge.monobuild.MainModule;
+import org.digitalforge.monobuild.Monobuild;
+import org.digitalforge.monobuild.graph.ClosurePolicy;
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.scheduler.CriticalPath;
+import org.digitalforge.monobuild.scheduler.FailurePolicy;
+import org.digitalforge.monobuild.scheduler.TaskGraph;
+
+// Runs the whole buildTest pipeline over a generated git monorepo whose build.sh and test.sh just sleep and print,
+// then reports how far the run was from the best schedule those sleeps allow, along with the costs that make up the
+// difference. Everything (repo, ~/.monobuild, logs) lives in a temporary directory.
+//
+//   ./gradlew harness -Pharness="--shape diamond --projects 200 --sleep-ms 200 --output-mb 1 --jobs 8"
+@CommandLine.Command(name = "harness", mixinStandardHelpOptions = true, description = "Measure scheduler overhead on a generated monorepo")
+public class SchedulerHarness implements Callable<Integer> {
+
+    enum Shape { CHAIN, FANOUT, DIAMOND }
+
+    @CommandLine.Option(names = "--shape", description = "chain, fanout or diamond (default: ${DEFAULT-VALUE})")
+    Shape shape = Shape.DIAMOND;
+
+    @CommandLine.Option(names = "--projects", description = "Number of projects (default: ${DEFAULT-VALUE})")
+    int projects = 100;
+
+    @CommandLine.Option(names = "--sleep-ms", description = "How long each build.sh and test.sh sleeps (default: ${DEFAULT-VALUE})")
+    int sleepMillis = 100;
+
+    @CommandLine.Option(names = "--output-mb", description = "Output each script prints (default: ${DEFAULT-VALUE})")
+    double outputMegabytes = 0;
+
+    @CommandLine.Option(names = "--jobs", description = "Parallelism (default: ${DEFAULT-VALUE})")
+    int jobs = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = "--keep", description = "Leave the generated repo behind")
+    boolean keep;
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new SchedulerHarness()).setCaseInsensitiveEnumValuesAllowed(true).execute(args));
+    }
+
+    @Override
+    public Integer call() throws Exception {
+
+        Path workDir = Files.createTempDirectory("monobuild-harness-");
+        Path repoDir = workDir.resolve("repo");
+        Path outputDir = workDir.resolve("output");
+        Files.createDirectories(outputDir.resolve("logs"));
+
+        List<List<Integer>> includes = generateIncludes();
+        generateRepo(repoDir, includes);
+
+        Injector injector = Guice.createInjector(Modules.override(new MainModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Path.class).annotatedWith(Names.named("repoDir")).toInstance(repoDir);
+                bind(Path.class).annotatedWith(Names.named("outputDir")).toInstance(outputDir);
+                bind(Path.class).annotatedWith(Names.named("logDir")).toInstance(outputDir.resolve("logs"));
+                bind(Path.class).annotatedWith(Names.named("homeDir")).toInstance(workDir.resolve("home"));
+                bind(String.class).annotatedWith(Names.named("oldGitRef")).toInstance("refs/heads/main");
+            }
+        }));
+        Monobuild monobuild = injector.getInstance(Monobuild.class);
+
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        int exitCode = monobuild.buildTest(new String[0], "main", false, String.valueOf(jobs), FailurePolicy.FAIL_FAST, null, false, ClosurePolicy.FULL);
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+        long heapPeak = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+
+        report(exitCode, wallMillis, heapPeak, includes, outputDir.resolve("trace.json"), outputDir.resolve("logs"));
+
+        if (!keep) {
+            SyntheticMonorepo.deleteRecursively(workDir);
+        } else {
+            System.out.println("Generated repo kept in " + repoDir);
+        }
+
+        return exitCode;
+
+    }
+
+    // Which earlier projects each project includes
+    private List<List<Integer>> generateIncludes() {
+
+        Random random = new Random(42);
+        List<List<Integer>> includes = new ArrayList<>();
+        int width = Math.max(2, (int) Math.sqrt(projects));
+
+        for (int i = 0; i < projects; i++) {
+            List<Integer> dependencies = new ArrayList<>();
+            switch (shape) {
+                case CHAIN:
+                    if (i > 0) {
+                        dependencies.add(i - 1);
+                    }
+                    break;
+                case FANOUT:
+                    if (i > 0) {
+                        dependencies.add(0);
+                    }
+                    break;
+                case DIAMOND:
+                    // Layers of `width` projects, each including two projects from the layer before
+                    int layer = i / width;
+                    if (layer > 0) {
+                        int previous = (layer - 1) * width;
+                        dependencies.add(previous + random.nextInt(width));
+                        dependencies.add(previous + random.nextInt(width));
+                    }
+                    break;
+            }
+            includes.add(dependencies);
+        }
+
+        return includes;
+
+    }
+
+    // main has just the .monobuild config; the current branch adds every project, so every project has changed
+    private void generateRepo(Path repoDir, List<List<Integer>> includes) throws IOException, GitAPIException {
+
+        Files.createDirectories(repoDir.resolve(".monobuild"));
+        Files.writeString(repoDir.resolve(".monobuild/projects.txt"), "projects/*\n");
+
+        try (Git git = Git.init().setDirectory(repoDir.toFile()).setInitialBranch("main").call()) {
+
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("Initial commit").setAuthor("harness", "harness@localhost").setCommitter("harness", "harness@localhost").call();
+            git.checkout().setCreateBranch(true).setName("feature").call();
+
+            long outputBytes = (long) (outputMegabytes * 1024 * 1024);
+            String script = "#!/bin/sh\n"
+                    + "sleep " + (sleepMillis / 1000.0) + "\n"
+                    + (outputBytes > 0 ? "yes 'monobuild harness output line' | head -c " + outputBytes + "\n" : "");
+
+            for (int i = 0; i < projects; i++) {
+                Path dir = repoDir.resolve("projects/p" + i);
+                Files.createDirectories(dir);
+                StringBuilder settings = new StringBuilder("rootProject.name = 'p" + i + "'\n");
+                for (int dependency : includes.get(i)) {
+                    settings.append("includeBuild('../p").append(dependency).append("')\n");
+                }
+                Files.writeString(dir.resolve("settings.gradle"), settings.toString());
+                for (String name : List.of("build.sh", "test.sh")) {
+                    Path file = dir.resolve(name);
+                    Files.writeString(file, script);
+                    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+                }
+            }
+
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("Add projects").setAuthor("harness", "harness@localhost").setCommitter("harness", "harness@localhost").call();
+
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private void report(int exitCode, long wallMillis, long heapPeak, List<List<Integer>> includes, Path traceFile, Path logDir) throws IOException {
+
+        // The best any scheduler could do with these sleeps and this many jobs, ignoring every overhead
+        TaskGraph<String> graph = new TaskGraph<>();
+        for (int i = 0; i < projects; i++) {
+            graph.add("p" + i + ":build");
+            for (int dependency : includes.get(i)) {
+                graph.addDependency("p" + i + ":build", "p" + dependency + ":build");
+            }
+            graph.addDependency("p" + i + ":test", "p" + i + ":build");
+        }
+        long idealMillis = new CriticalPath<>(graph, node -> sleepMillis).predictMakespan(jobs);
+
+        // Break the run down from its trace
+        Map<String, Object> trace = JsonHelper.MAPPER.readValue(traceFile.toFile(), Map.class);
+        double planning = 0;
+        double firstPhase = Double.MAX_VALUE;
+        double lastPhase = 0;
+        double spawnTotal = 0;
+        double pumpTotal = 0;
+        int spawns = 0;
+        for (Map<String, Object> event : (List<Map<String, Object>>) trace.get("traceEvents")) {
+            if (!"X".equals(event.get("ph"))) {
+                continue;
+            }
+            double ts = ((Number) event.get("ts")).doubleValue() / 1000;
+            double dur = ((Number) event.get("dur")).doubleValue() / 1000;
+            String category = (String) event.get("cat");
+            String name = (String) event.get("name");
+            if (category.equals("planning")) {
+                planning += dur;
+            } else if (category.equals("phase")) {
+                firstPhase = Math.min(firstPhase, ts);
+                lastPhase = Math.max(lastPhase, ts + dur);
+            } else if (name.equals("spawn")) {
+                spawnTotal += dur;
+                spawns++;
+            } else if (name.equals("running") || name.equals("log flush")) {
+                pumpTotal += dur;
+            }
+        }
+        double schedulerMillis = lastPhase - firstPhase;
+
+        long logBytes = 0;
+        try (var files = Files.list(logDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                logBytes += Files.size(file);
+            }
+        }
+        // Scripts only sleep while not printing, so take the sleeps out of the time the pumps were busy
+        double pumpMillis = pumpTotal - (double) spawns * sleepMillis;
+
+        System.out.println();
+        System.out.println("==================== Scheduler harness ====================");
+        System.out.printf("%-30s: %s, %d projects, %d jobs%n", "Graph", shape.name().toLowerCase(), projects, jobs);
+        System.out.printf("%-30s: %d ms sleep, %.1f MB output%n", "Each script", sleepMillis, outputMegabytes);
+        System.out.printf("%-30s: %d%n", "Exit code", exitCode);
+        System.out.printf("%-30s: %d ms%n", "Wall time", wallMillis);
+        System.out.printf("%-30s: %.0f ms%n", "Planning", planning);
+        System.out.printf("%-30s: %.0f ms%n", "Scheduled phases", schedulerMillis);
+        System.out.printf("%-30s: %d ms%n", "Ideal makespan", idealMillis);
+        System.out.printf("%-30s: %.0f ms (%.1f%%)%n", "Scheduler overhead", schedulerMillis - idealMillis, 100 * (schedulerMillis - idealMillis) / Math.max(1, idealMillis));
+        System.out.printf("%-30s: %.2f ms%n", "Spawn cost (mean)", spawns > 0 ? spawnTotal / spawns : 0);
+        System.out.printf("%-30s: %.1f MB%n", "Log output", logBytes / 1024.0 / 1024.0);
+        if (logBytes > 0 && pumpMillis > 0) {
+            System.out.printf("%-30s: %.1f MB/s%n", "Log pump throughput", logBytes / 1024.0 / 1024.0 / (pumpMillis / 1000));
+        }
+        System.out.printf("%-30s: %.1f MB%n", "Heap high-water mark", heapPeak / 1024.0 / 1024.0);
+
+    }
+
+}
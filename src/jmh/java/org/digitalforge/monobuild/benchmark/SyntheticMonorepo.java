@@ -0,0 +1,104 @@
+package org.digitalforge.monobuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// A generated monorepo on disk: projects/gNNN/pNNNNN, 100 projects to a group, each a Gradle build that includes a
+// few lower-numbered projects so the graph is a DAG. Most edges stay near the project (same or neighbouring group),
+// with the odd one reaching far back to a shared library, which is roughly what real repos look like.
+public class SyntheticMonorepo {
+
+    private static final int PROJECTS_PER_GROUP = 100;
+    private static final int MAX_INCLUDES = 4;
+
+    public final Path root;
+    public final List<String> projectPaths = new ArrayList<>();
+
+    private SyntheticMonorepo(Path root) {
+        this.root = root;
+    }
+
+    public static SyntheticMonorepo create(int projects, long seed) throws IOException {
+
+        SyntheticMonorepo repo = new SyntheticMonorepo(Files.createTempDirectory("monobuild-bench-"));
+        Random random = new Random(seed);
+
+        Files.createDirectories(repo.root.resolve(".monobuild"));
+        Files.writeString(repo.root.resolve(".monobuild/projects.txt"), "projects/*/*\n!projects/*/ignored\n");
+
+        for (int i = 0; i < projects; i++) {
+            repo.projectPaths.add(path(i));
+        }
+
+        for (int i = 0; i < projects; i++) {
+
+            Path dir = repo.root.resolve(repo.projectPaths.get(i));
+            Files.createDirectories(dir.resolve("src/main/java"));
+
+            StringBuilder settings = new StringBuilder("rootProject.name = 'p" + i + "'\n\n");
+            int includes = (i == 0) ? 0 : random.nextInt(Math.min(i, MAX_INCLUDES) + 1);
+            for (int j = 0; j < includes; j++) {
+                int dependency = random.nextInt(10) == 0
+                        ? random.nextInt(Math.min(i, PROJECTS_PER_GROUP))
+                        : Math.max(0, i - 1 - random.nextInt(Math.min(i, 2 * PROJECTS_PER_GROUP)));
+                settings.append("includeBuild('../../").append(group(dependency)).append("/p").append(dependency).append("')\n");
+            }
+
+            Files.writeString(dir.resolve("settings.gradle"), settings.toString());
+            Files.writeString(dir.resolve("build.gradle"), "plugins { id 'java' }\n");
+            Files.writeString(dir.resolve("src/main/java/Main.java"), "class Main {}\n");
+
+        }
+
+        return repo;
+
+    }
+
+    // Repo-relative files that a typical change touches: a source file in each of `count` projects, plus a few
+    // files that don't belong to any project
+    public List<String> changedFiles(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(projectPaths.get(random.nextInt(projectPaths.size())) + "/src/main/java/Main.java");
+        }
+        files.add("README.md");
+        files.add(".circleci/config.yml");
+        return files;
+    }
+
+    public void delete() throws IOException {
+        deleteRecursively(root);
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String path(int project) {
+        return "projects/" + group(project) + "/p" + project;
+    }
+
+    private static String group(int project) {
+        return String.format("g%03d", project / PROJECTS_PER_GROUP);
+    }
+
+}
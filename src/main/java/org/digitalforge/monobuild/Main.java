@@ -1,5 +1,6 @@
 package org.digitalforge.monobuild;
 
+import java.nio.file.Path;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -8,6 +9,8 @@ import com.google.inject.Injector;
 import picocli.CommandLine;
 
 import org.digitalforge.monobuild.command.MonobuildCommand;
+import org.digitalforge.monobuild.daemon.DaemonClient;
+import org.digitalforge.monobuild.daemon.DaemonProtocol;
 
 @Singleton
 public class Main {
@@ -21,6 +24,14 @@ public class Main {
 
     public static void main(final String[] args) {
 
+        // graph and affected are answered by this repo's daemon when one is running, skipping all of the setup below
+        if (DaemonClient.isForwarded(args)) {
+            Integer exitCode = forwardToDaemon(args);
+            if (exitCode != null) {
+                System.exit(exitCode);
+            }
+        }
+
         Injector injector = Guice.createInjector(new MainModule());
         Main main = injector.getInstance(Main.class);
 
@@ -30,6 +41,17 @@ public class Main {
 
     }
 
+    private static Integer forwardToDaemon(String[] args) {
+        Path repoDir;
+        try {
+            repoDir = MainModule.findRepoDir(Path.of(System.getProperty("user.dir")));
+        } catch (RuntimeException e) {
+            // Not in a monobuild repo; let the normal path report it
+            return null;
+        }
+        return DaemonClient.forward(DaemonProtocol.daemonFile(MainModule.homeDir(), MainModule.repoKey(repoDir)), args);
+    }
+
     public int start(String... args) {
 
         // Inject all the commands and organize subcommands here
@@ -3,19 +3,26 @@ package org.digitalforge.monobuild;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 
+import org.digitalforge.monobuild.helper.ConfigHelper;
+import org.digitalforge.monobuild.helper.HashHelper;
 import org.digitalforge.monobuild.helper.RepoHelper;
+import org.digitalforge.monobuild.helper.SupervisorThreads;
 
 public class MainModule extends AbstractModule {
 
     private static final int CI_THREAD_COUNT = 1;
     private static final int DEFAULT_THREAD_COUNT = 1;
+    private static final long CACHE_MAX_BYTES = 2L * 1024 * 1024 * 1024;
 
     @Override
     protected void configure() {
@@ -28,11 +35,31 @@ public class MainModule extends AbstractModule {
         return Boolean.parseBoolean(System.getenv("CI"));
     }
 
+    // Rename detection has to compare the content of every added and deleted file, so it's opt-in
+    @Provides
+    @Named("detectRenames")
+    @Singleton
+    public Boolean provideDetectRenames() {
+        return Boolean.parseBoolean(System.getenv("MONOBUILD_DETECT_RENAMES"));
+    }
+
     @Provides
     @Named("repoDir")
     @Singleton
     public Path provideRepoDir() {
-        Path dir = Path.of(System.getProperty("user.dir"));
+        return findRepoDir(Path.of(System.getProperty("user.dir")));
+    }
+
+    // Identifies the repo in per-repo files under the home directory
+    @Provides
+    @Named("repoKey")
+    @Singleton
+    public String provideRepoKey(@Named("repoDir") Path repoDir) {
+        return repoKey(repoDir);
+    }
+
+    // The nearest directory at or above dir with a .monobuild directory in it
+    public static Path findRepoDir(Path dir) {
         do {
             Path file = dir.resolve(".monobuild");
             if (Files.exists(file) && Files.isDirectory(file)) {
@@ -43,6 +70,10 @@ public class MainModule extends AbstractModule {
         throw new RuntimeException("Cannot find .monobuild directory in parent directories: " + System.getProperty("user.dir"));
     }
 
+    public static String repoKey(Path repoDir) {
+        return HashHelper.sha256(List.of(repoDir.toString())).substring(0, 16);
+    }
+
     @Provides
     @Named("outputDir")
     @Singleton
@@ -65,6 +96,51 @@ public class MainModule extends AbstractModule {
         return logDir;
     }
 
+    @Provides
+    @Named("homeDir")
+    @Singleton
+    public Path provideHomeDir() {
+        return homeDir();
+    }
+
+    public static Path homeDir() {
+        return Path.of(System.getProperty("user.home")).resolve(".monobuild");
+    }
+
+    @Provides
+    @Named("cacheDir")
+    @Singleton
+    public Path provideCacheDir(@Named("homeDir") Path homeDir) throws IOException {
+        Path cacheDir = homeDir.resolve("cache");
+        if (!Files.exists(cacheDir)) {
+            Files.createDirectories(cacheDir);
+        }
+        return cacheDir;
+    }
+
+    @Provides
+    @Named("cacheMaxBytes")
+    @Singleton
+    public Long provideCacheMaxBytes() {
+        return CACHE_MAX_BYTES;
+    }
+
+    // 0 when scripts may run for as long as they like
+    @Provides
+    @Named("processTimeoutMillis")
+    @Singleton
+    public Long provideProcessTimeoutMillis(@Named("repoDir") Path repoDir, ConfigHelper configHelper) {
+        return TimeUnit.MINUTES.toMillis(configHelper.readMonobuildConfig(repoDir).getProcessTimeoutMinutes());
+    }
+
+    // Nobody watches the colors in CI, so skip the pseudo-terminal there
+    @Provides
+    @Named("spawnBackend")
+    @Singleton
+    public SpawnBackend provideSpawnBackend(@Named("ci") Boolean ci) {
+        return ci ? SpawnBackend.PLAIN : SpawnBackend.PTY;
+    }
+
     @Provides
     @Named("threadCount")
     @Singleton
@@ -76,6 +152,13 @@ public class MainModule extends AbstractModule {
         }
     }
 
+    @Provides
+    @Named("supervisorExecutor")
+    @Singleton
+    public ExecutorService provideSupervisorExecutor() {
+        return SupervisorThreads.newExecutor();
+    }
+
     @Provides
     @Named("oldGitRef")
     @Singleton
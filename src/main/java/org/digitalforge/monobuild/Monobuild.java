@@ -6,22 +6,40 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
-import com.google.common.collect.Streams;
-import me.alexjs.dag.Dag;
-import me.alexjs.dag.DagTraversalTask;
+import org.digitalforge.monobuild.cache.ResultCache;
+import org.digitalforge.monobuild.circleci.JobBatcher;
 import org.digitalforge.monobuild.circleci.workflow.Job;
 import org.digitalforge.monobuild.circleci.workflow.Workflow;
 import org.digitalforge.monobuild.config.CircleCiConfig;
+import org.digitalforge.monobuild.config.MonobuildConfig;
+import org.digitalforge.monobuild.config.ResourceConfig;
+import org.digitalforge.monobuild.graph.AffectedClosure;
+import org.digitalforge.monobuild.graph.ClosurePolicy;
+import org.digitalforge.monobuild.graph.ProjectGraph;
+import org.digitalforge.monobuild.graph.Shard;
+import org.digitalforge.monobuild.graph.ShardPlanner;
 import org.digitalforge.monobuild.helper.*;
+import org.digitalforge.monobuild.history.DurationHistory;
+import org.digitalforge.monobuild.index.ProjectTrie;
+import org.digitalforge.monobuild.scheduler.Batcher;
+import org.digitalforge.monobuild.scheduler.CriticalPath;
+import org.digitalforge.monobuild.scheduler.FailurePolicy;
+import org.digitalforge.monobuild.scheduler.LoadController;
+import org.digitalforge.monobuild.scheduler.ResourceBudget;
+import org.digitalforge.monobuild.scheduler.SchedulerListener;
+import org.digitalforge.monobuild.scheduler.TaskGraph;
+import org.digitalforge.monobuild.scheduler.TaskScheduler;
+import org.digitalforge.monobuild.trace.TraceRecorder;
+import org.digitalforge.monobuild.watch.ProjectWatcher;
 import org.eclipse.jgit.lib.Constants;
 
 import org.digitalforge.monobuild.logging.console.Console;
@@ -33,6 +51,13 @@ public class Monobuild {
     //TODO: make this part of monobuildConfig.json so you can configure the monobuild
     private final static String MAIN = "main"; //or 'master' for legacy githubs
 
+    // Phases that took less than this on earlier runs count as small enough to share a process with --batch-small
+    private static final long SMALL_PROJECT_MILLIS = 2000;
+    private static final int SMALL_PROJECT_BATCH_SIZE = 16;
+
+    // How long the watcher waits for edits to stop before starting a run, so a save-all is one run
+    private final static long WATCH_QUIET_MILLIS = 300;
+
     private final Boolean ci;
     private final Path outputDir;
     private final Path logDir;
@@ -44,6 +69,12 @@ public class Monobuild {
     private final ProjectHelper projectHelper;
     private final RepoHelper repoHelper;
     private final ThreadHelper threadHelper;
+    private final SystemHelper systemHelper;
+    private final ConfigHelper configHelper;
+    private final ResultCache resultCache;
+    private final DurationHistory durationHistory;
+    private final TraceRecorder traceRecorder;
+    private final AffectedClosure affectedClosure;
 
     @Inject
     public Monobuild(
@@ -57,7 +88,13 @@ public class Monobuild {
             ProjectTasks projectTasks,
             ProjectHelper projectHelper,
             RepoHelper repoHelper,
-            ThreadHelper threadHelper
+            ThreadHelper threadHelper,
+            SystemHelper systemHelper,
+            ConfigHelper configHelper,
+            ResultCache resultCache,
+            DurationHistory durationHistory,
+            TraceRecorder traceRecorder,
+            AffectedClosure affectedClosure
     ) {
         this.ci = ci;
         this.outputDir = outputDir;
@@ -70,9 +107,15 @@ public class Monobuild {
         this.projectHelper = projectHelper;
         this.repoHelper = repoHelper;
         this.threadHelper = threadHelper;
+        this.systemHelper = systemHelper;
+        this.configHelper = configHelper;
+        this.resultCache = resultCache;
+        this.durationHistory = durationHistory;
+        this.traceRecorder = traceRecorder;
+        this.affectedClosure = affectedClosure;
     }
 
-    public int buildTest(String[] args, String baseRef) {
+    public int buildTest(String[] args, String baseRef, boolean useCache, String jobs, FailurePolicy failurePolicy, Shard shard, boolean batchSmall, ClosurePolicy closurePolicy) {
 
         if(baseRef == null) {
             baseRef = MAIN;
@@ -82,24 +125,36 @@ public class Monobuild {
 
         // Start the timer
         long start = System.currentTimeMillis();
+        long predicted;
+        long actual;
+
+        traceRecorder.reset();
 
         try {
 
+            TraceRecorder.Span span = traceRecorder.start("listAllProjects", "planning");
             List<Project> allProjects = projectHelper.listAllProjects(repoDir);
+            span.end();
+
             //TODO: modify main branch to be a configuration thing(monobuildConfig.json perhaps as yml sucks)
+            span = traceRecorder.start("diff", "planning");
             Collection<String> changedFiles = repoHelper.diff(repoDir.toFile(), oldGitRef, Constants.HEAD, baseRef);
             List<Project> changedProjects = projectHelper.getChangedProjects(allProjects, changedFiles, repoDir);
-            Dag<Project> dag = projectHelper.getDependencyTree(allProjects, repoDir);
+            span.end();
 
-            // Build the affected projects, the projects that they depend on, and the projects that depend on them
-            List<Project> projectsToBuild = changedProjects.stream()
-                    .flatMap(p -> Streams.concat(dag.getAncestors(p).stream(), dag.getDescendants(p).stream(), Stream.of(p)))
-                    .distinct()
-                    .sorted(Comparator.comparing(p -> p.name))
-                    .collect(Collectors.toList());
+            span = traceRecorder.start("getDependencyTree", "planning");
+            ProjectGraph dag = projectHelper.getDependencyTree(allProjects, repoDir);
+            span.end();
+
+            // Build the affected projects, the projects that they depend on, and the projects that depend on them, and
+            // test whichever of them the closure policy says to
+            AffectedClosure.Closure closure = affectedClosure.getClosure(changedProjects, dag, closurePolicy);
+            List<Project> projectsToBuild = closure.getBuilt();
+            Set<Project> projectsToTest = closure.getTested();
 
             StringJoiner changedJoiner = new StringJoiner("\n", "", "\n");
             StringJoiner builtJoiner = new StringJoiner("\n", "", "\n");
+            StringJoiner testedJoiner = new StringJoiner("\n", "", "\n");
 
             console.header("Changed projects");
             if (!changedProjects.isEmpty()) {
@@ -117,9 +172,17 @@ public class Monobuild {
             if (!projectsToBuild.isEmpty()) {
                 for (Project project : projectsToBuild) {
                     Path path = repoDir.relativize(project.path);
-                    console.infoLeftRight(project.name, path);
+                    console.infoLeftRight(project.name, projectsToTest.contains(project) ? path : path + " (build only)");
                     builtJoiner.add(path.toString());
+                    if (projectsToTest.contains(project)) {
+                        testedJoiner.add(path.toString());
+                    }
                 }
+                console.footer();
+                console.infoLeftRight("Closure policy", closurePolicy);
+                console.infoLeftRight("Changed", closure.changed.size());
+                console.infoLeftRight("Upstream", closure.upstream.size() + (closurePolicy.isTestUpstream() ? "" : " (build only)"));
+                console.infoLeftRight("Downstream", closure.downstream.size() + (closurePolicy.getDepth() < 0 ? "" : " (depth " + closurePolicy.getDepth() + ")"));
             } else {
                 console.info("No projects to test");
                 return 0;
@@ -128,37 +191,133 @@ public class Monobuild {
             // Write to files so we can see these lists after monobuild is complete
             writeProjectList("changed.txt", changedJoiner.toString());
             writeProjectList("built.txt", builtJoiner.toString());
+            writeProjectList("tested.txt", testedJoiner.toString());
 
-            console.header("Building");
+            // On a shard, test only this node's share of the tested projects and build just what that share depends on
+            if (shard != null) {
 
-            ExecutorService buildThreadPool = threadHelper.newThreadPool("builder", threadCount);
-            dag.retainAll(projectsToBuild);
-            BiConsumer<Project, String[]> builder = (project, args2) -> {projectTasks.buildProject(project, args2);};
-            DagTraversalTask<Project> buildTask = new DagTraversalTask<>(dag, new BiConsumerTask(args, builder), buildThreadPool);
+                ShardPlanner shardPlanner = new ShardPlanner(dag, this::estimateProject);
+                List<List<Project>> shards = shardPlanner.assign(projectsToTest, shard.count);
+                List<Project> tested = shards.get(shard.index - 1);
 
-            if (!buildTask.awaitTermination(2, TimeUnit.HOURS)) {
-                console.error("Build failed: Timeout exceeded");
-                return 1;
+                console.header("Shard " + shard);
+                for (int i = 0; i < shards.size(); i++) {
+                    long estimate = shards.get(i).stream().mapToLong(this::estimateProject).sum();
+                    console.infoLeftRight("Shard " + (i + 1) + "/" + shard.count, shards.get(i).size() + " projects, " + console.formatMillis(estimate));
+                }
+
+                if (tested.isEmpty()) {
+                    console.info("No projects in this shard");
+                    return 0;
+                }
+
+                projectsToBuild = shardPlanner.getClosure(tested, projectsToBuild);
+                projectsToTest = new HashSet<>(tested);
+
+                StringJoiner shardJoiner = new StringJoiner("\n", "", "\n");
+                console.header("Projects in this shard");
+                for (Project project : projectsToBuild) {
+                    Path path = repoDir.relativize(project.path);
+                    console.infoLeftRight(project.name, projectsToTest.contains(project) ? path : path + " (build only)");
+                    shardJoiner.add(path.toString());
+                }
+                writeProjectList("shard.txt", shardJoiner.toString());
+
+            }
+
+            dag = dag.subgraph(projectsToBuild);
+            TaskGraph<ProjectPhase> taskGraph = newTaskGraph(dag, projectsToBuild, projectsToTest);
+
+            // Projects whose phases all already passed on identical inputs don't need to run again
+            Map<ProjectPhase, String> cacheKeys = new HashMap<>();
+            Set<Project> cachedProjects = new HashSet<>();
+            if (useCache) {
+                Map<Project, String> fingerprints = resultCache.fingerprint(dag);
+                for (ProjectPhase task : taskGraph.getNodes()) {
+                    String fingerprint = fingerprints.get(task.project);
+                    if (fingerprint != null) {
+                        cacheKeys.put(task, resultCache.key(fingerprint, task.phase.verb, args));
+                    }
+                }
+                for (Project project : projectsToBuild) {
+                    boolean cached = taskGraph.getNodes().stream()
+                            .filter(task -> task.project.equals(project))
+                            .allMatch(task -> cacheKeys.containsKey(task) && resultCache.contains(cacheKeys.get(task)));
+                    if (cached) {
+                        cachedProjects.add(project);
+                    }
+                }
+            }
+
+            if (!cachedProjects.isEmpty()) {
+                console.header("Cached projects");
+                for (Project project : projectsToBuild) {
+                    if (cachedProjects.contains(project)) {
+                        console.infoLeftRight(project.name, repoDir.relativize(project.path));
+                    }
+                }
             }
 
-            console.header("Testing");
+            // Start whatever has the longest estimated chain of work after it first, based on earlier runs
+            CriticalPath<ProjectPhase> criticalPath = new CriticalPath<>(taskGraph, task ->
+                    cachedProjects.contains(task.project) ? 0 : durationHistory.estimate(task.project, task.phase));
+            int parallelism = resolveJobs(jobs);
+            predicted = criticalPath.predictMakespan(parallelism);
 
-            ExecutorService testThreadPool = threadHelper.newThreadPool("tester", threadCount);
-            BiConsumer<Project, String[]> tester = (project, args2) -> {projectTasks.testProject(project, args2);};
-            DagTraversalTask<Project> testTask = new DagTraversalTask<>(dag, new BiConsumerTask(args, tester), testThreadPool);
+            console.header("Building and testing");
+            console.infoLeftRight("Jobs", isAutoJobs(jobs) ? parallelism + " (auto)" : parallelism);
+
+            ResourceBudget<ProjectPhase> resourceBudget = newResourceBudget(parallelism);
+            if (resourceBudget != null) {
+                console.infoLeftRight("Resource budget", String.format("%s CPUs, %s MB", resourceBudget.getCpuBudget(), resourceBudget.getMemoryBudget()));
+            }
 
-            if (!testTask.awaitTermination(2, TimeUnit.HOURS)) {
-                console.error("Testing failed: Timeout exceeded");
+            // Every phase of every project shares one pool, so a project's tests start as soon as its own build is done
+            long schedulerStart = System.currentTimeMillis();
+            ExecutorService workerThreadPool = threadHelper.newThreadPool("worker", parallelism);
+            Consumer<ProjectPhase> worker = task -> {
+                cachedExecute(task, cacheKeys, cachedProjects, () -> projectTasks.execute(task.project, task.phase, args));
+            };
+            Batcher<ProjectPhase> batcher = batchSmall ? newSmallProjectBatcher(args, cacheKeys, cachedProjects) : null;
+            TaskScheduler<ProjectPhase> scheduler = new TaskScheduler<>(taskGraph, worker, workerThreadPool, parallelism, criticalPath::getRemaining, resourceBudget, failurePolicy, traceQueueing(ProjectPhase::toString), batcher);
+
+            // In auto mode, back off while the machine is saturated and grow again once it has headroom
+            LoadController loadController = isAutoJobs(jobs) ? new LoadController(scheduler, parallelism, systemHelper, threadHelper, console) : null;
+            try {
+                if (!scheduler.awaitTermination(4, TimeUnit.HOURS)) {
+                    console.error("Build failed: Timeout exceeded");
+                    return 1;
+                }
+            } finally {
+                if (loadController != null) {
+                    loadController.close();
+                }
+            }
+
+            durationHistory.save();
+
+            if (!scheduler.getFailures().isEmpty()) {
+                reportFailures(scheduler, start);
                 return 1;
             }
 
+            actual = System.currentTimeMillis() - schedulerStart;
+
+            if (useCache) {
+                resultCache.evict();
+            }
+
         } catch (InterruptedException | IOException e) {
             throw SneakyThrow.sneak(e);
+        } finally {
+            traceRecorder.write();
         }
 
         // Stop the timer
         console.footer();
         console.infoLeftRight("Success! Total time", console.formatMillis(System.currentTimeMillis() - start));
+        console.infoLeftRight("Build & test time (predicted)", console.formatMillis(predicted));
+        console.infoLeftRight("Build & test time (actual)", console.formatMillis(actual));
         console.info("You can view all project build logs in " + logDir);
 
         return 0;
@@ -170,7 +329,7 @@ public class Monobuild {
         try {
 
             List<Project> allProjects = projectHelper.listAllProjects(repoDir);
-            Dag<Project> dag = projectHelper.getDependencyTree(allProjects, repoDir);
+            ProjectGraph dag = projectHelper.getDependencyTree(allProjects, repoDir);
 
             // Turn it into a more human-readable map, print it to the console, and save it as a json file
 
@@ -178,9 +337,9 @@ public class Monobuild {
             console.footer();
 
             Map<String, List<String>> outputMap = new TreeMap<>();
-            for (Project project : dag.getNodes()) {
+            for (Project project : dag.getProjects()) {
 
-                List<String> dependencies = dag.getIncoming(project).stream()
+                List<String> dependencies = dag.getDependencies(project).stream()
                         .map(p -> p.name)
                         .collect(Collectors.toList());
                 outputMap.put(project.name, dependencies);
@@ -207,6 +366,57 @@ public class Monobuild {
 
     }
 
+    // The changed and affected projects, without building anything
+    public int affected(String baseRef) {
+
+        if(baseRef == null) {
+            baseRef = MAIN;
+        }
+
+        try {
+
+            List<Project> allProjects = projectHelper.listAllProjects(repoDir);
+            Collection<String> changedFiles = repoHelper.diff(repoDir.toFile(), oldGitRef, Constants.HEAD, baseRef);
+            List<Project> changedProjects = projectHelper.getChangedProjects(allProjects, changedFiles, repoDir);
+            ProjectGraph dag = projectHelper.getDependencyTree(allProjects, repoDir);
+
+            // The affected projects, the projects that they depend on, and the projects that depend on them
+            List<Project> affectedProjects = affectedClosure.getAffected(changedProjects, dag);
+
+            StringJoiner changedJoiner = new StringJoiner("\n", "", "\n");
+            StringJoiner affectedJoiner = new StringJoiner("\n", "", "\n");
+
+            console.header("Changed projects");
+            for (Project project : changedProjects) {
+                Path path = repoDir.relativize(project.path);
+                console.infoLeftRight(project.name, path);
+                changedJoiner.add(path.toString());
+            }
+            if (changedProjects.isEmpty()) {
+                console.info("No projects changed");
+            }
+
+            console.header("Affected projects");
+            for (Project project : affectedProjects) {
+                Path path = repoDir.relativize(project.path);
+                console.infoLeftRight(project.name, path);
+                affectedJoiner.add(path.toString());
+            }
+            if (affectedProjects.isEmpty()) {
+                console.info("No projects affected");
+            }
+
+            writeProjectList("changed.txt", changedJoiner.toString());
+            writeProjectList("affected.txt", affectedJoiner.toString());
+
+        } catch (IOException e) {
+            throw SneakyThrow.sneak(e);
+        }
+
+        return 0;
+
+    }
+
     public int circleciWorkflows(String baseRef) {
 
         if(baseRef == null) {
@@ -221,45 +431,56 @@ public class Monobuild {
             //TODO: modify main branch to be a configuration thing(monobuildConfig.json perhaps as yml sucks)
             Collection<String> changedFiles = repoHelper.diff(repoDir.toFile(), oldGitRef, Constants.HEAD, baseRef);
             List<Project> changedProjects = projectHelper.getChangedProjects(allProjects, changedFiles, repoDir);
-            Dag<Project> dag = projectHelper.getDependencyTree(allProjects, repoDir);
+            ProjectGraph dag = projectHelper.getDependencyTree(allProjects, repoDir);
 
             // Build the affected projects, the projects that they depend on, and the projects that depend on them
-            List<Project> projectsToBuild = changedProjects.stream()
-                    .flatMap(p -> Streams.concat(dag.getAncestors(p).stream(), dag.getDescendants(p).stream(), Stream.of(p)))
-                    .distinct()
-                    .sorted(Comparator.comparing(p -> p.name))
-                    .collect(Collectors.toList());
+            List<Project> projectsToBuild = affectedClosure.getAffected(changedProjects, dag);
 
             Map<String, Workflow> workflows = new TreeMap<>();
             Workflow buildWorkflow = new Workflow().setJobs(new ArrayList<>());
 
             buildWorkflow.getJobs().add("initialize");
 
-            for (Project project : projectsToBuild) {
-
-                Path relativePath = repoDir.relativize(project.path);
+            // Small projects of a job type with a batch budget share a job, which saves a container spin-up each
+            JobBatcher jobBatcher = new JobBatcher(dag, this::estimateProject, this::isTimedProject, this::circleCiJobType, type -> {
+                CircleCiConfig.JobConfig jobConfig = config.getJobs().get(type);
+                return (jobConfig != null) ? jobConfig.getBatchSeconds() * 1000 : 0;
+            });
+            List<JobBatcher.Batch> batches = jobBatcher.batch(projectsToBuild);
+
+            Map<Project, String> jobNames = new HashMap<>();
+            for (JobBatcher.Batch batch : batches) {
+                Project first = batch.projects.get(0);
+                String name = (batch.projects.size() == 1) ? "build-" + first.name : "build-" + first.name + "-and-" + (batch.projects.size() - 1) + "-more";
+                for (Project project : batch.projects) {
+                    jobNames.put(project, name);
+                }
+            }
 
-                Job projectJob = new Job();
-                projectJob.setName("build-" + project.name);
-                projectJob.setProjectdir(relativePath.toString());
+            for (JobBatcher.Batch batch : batches) {
 
+                String name = jobNames.get(batch.projects.get(0));
 
-                List<String> dependencies = dag.getIncoming(project).stream()
-                        .map(p -> "build-" + p.name)
-                        .collect(Collectors.toList());
-                projectJob.setRequires(dependencies);
+                Job projectJob = new Job();
+                projectJob.setName(name);
+                projectJob.setProjectdir(batch.projects.stream()
+                        .map(p -> repoDir.relativize(p.path).toString())
+                        .collect(Collectors.joining(" ")));
+
+                Set<String> dependencies = new TreeSet<>();
+                for (Project project : batch.projects) {
+                    for (Project dependency : dag.getDependencies(project)) {
+                        dependencies.add(jobNames.getOrDefault(dependency, "build-" + dependency.name));
+                    }
+                }
+                dependencies.remove(name);
+                projectJob.setRequires(new ArrayList<>(dependencies));
 
                 if(projectJob.getRequires().isEmpty()) {
                     projectJob.getRequires().add("initialize");
                 }
 
-                projectJob.getRequires().sort(String::compareTo);
-
-                String jobName = "build-" + relativePath.getName(0);
-
-                if(jobName.equals("build-groovy") || jobName.equals("build-kotlin")) {
-                    jobName = "build-java";
-                }
+                String jobName = batch.type;
 
                 if(config.getJobs().containsKey(jobName)) {
 
@@ -303,7 +524,7 @@ public class Monobuild {
 
     }
 
-    public int deploy(String[] args, String baseRef) {
+    public int deploy(String[] args, String baseRef, String jobs, FailurePolicy failurePolicy) {
 
         if(baseRef == null) {
             baseRef = MAIN;
@@ -313,19 +534,25 @@ public class Monobuild {
 
         long start = System.currentTimeMillis();
 
+        traceRecorder.reset();
+
         try {
 
+            TraceRecorder.Span span = traceRecorder.start("listAllProjects", "planning");
             List<Project> allProjects = projectHelper.listAllProjects(repoDir);
+            span.end();
+
+            span = traceRecorder.start("diff", "planning");
             Collection<String> changedFiles = repoHelper.diff(repoDir.toFile(), oldGitRef, Constants.HEAD, baseRef);
             List<Project> changedProjects = projectHelper.getChangedProjects(allProjects, changedFiles, repoDir);
-            Dag<Project> graph = projectHelper.getDependencyTree(allProjects, repoDir);
+            span.end();
+
+            span = traceRecorder.start("getDependencyTree", "planning");
+            ProjectGraph graph = projectHelper.getDependencyTree(allProjects, repoDir);
+            span.end();
 
             // Build the affected projects, the projects that they depend on, and the projects that depend on them
-            List<Project> projectsToBuild = changedProjects.stream()
-                .flatMap(p -> Streams.concat(graph.getAncestors(p).stream(), graph.getDescendants(p).stream(), Stream.of(p)))
-                .distinct()
-                .sorted(Comparator.comparing(p -> p.name))
-                .collect(Collectors.toList());
+            List<Project> projectsToBuild = affectedClosure.getAffected(changedProjects, graph);
 
             List<Project> projectsToDeploy = projectsToBuild.stream()
                 .filter(project -> Files.isExecutable(project.path.resolve("deploy.sh")))
@@ -349,18 +576,35 @@ public class Monobuild {
 
             console.header("Deploying");
 
-            ExecutorService deploymentThreadPool = threadHelper.newThreadPool("deployment", threadCount);
-            graph.retainAll(projectsToBuild);
-            BiConsumer<Project, String[]> deployer = (project, args2) -> {projectTasks.testProject(project, args2);};
-            DagTraversalTask<Project> deployTask = new DagTraversalTask<>(graph, new BiConsumerTask(args, deployer), deploymentThreadPool);
+            int parallelism = resolveJobs(jobs);
+            ExecutorService deploymentThreadPool = threadHelper.newThreadPool("deployment", parallelism);
+            graph = graph.subgraph(projectsToBuild);
+
+            TaskGraph<Project> deployGraph = new TaskGraph<>();
+            for (Project project : projectsToBuild) {
+                deployGraph.add(project);
+                for (Project dependency : graph.getDependencies(project)) {
+                    deployGraph.addDependency(project, dependency);
+                }
+            }
+
+            Consumer<Project> deployer = project -> projectTasks.testProject(project, args);
+            TaskScheduler<Project> deployTask = new TaskScheduler<>(deployGraph, deployer, deploymentThreadPool, parallelism, project -> 0, null, failurePolicy, traceQueueing(project -> project.name));
 
             if (!deployTask.awaitTermination(30, TimeUnit.MINUTES)) {
                 console.error("Deployment failed");
                 return 1;
             }
 
+            if (!deployTask.getFailures().isEmpty()) {
+                reportFailures(deployTask, start);
+                return 1;
+            }
+
         } catch (InterruptedException | IOException e) {
             throw SneakyThrow.sneak(e);
+        } finally {
+            traceRecorder.write();
         }
 
         // Stop the timer
@@ -372,6 +616,357 @@ public class Monobuild {
 
     }
 
+    // Rebuild and retest whatever a batch of saved files affects, until interrupted. Discovery and the graph are done
+    // once up front; only a settings file change re-reads the graph. A new batch cancels the run that's in progress
+    // and folds its projects into the next one.
+    public int watch(String[] args, String jobs, FailurePolicy failurePolicy) {
+
+        outputHeader();
+
+        try {
+
+            List<Project> allProjects = projectHelper.listAllProjects(repoDir);
+            ProjectGraph dag = projectHelper.getDependencyTree(allProjects, repoDir);
+            ProjectTrie projectTrie = new ProjectTrie(allProjects, repoDir);
+            MonobuildConfig config = configHelper.readMonobuildConfig(repoDir);
+            int parallelism = resolveJobs(jobs);
+
+            List<Path> roots = allProjects.stream().map(p -> p.path).collect(Collectors.toList());
+            try (ProjectWatcher watcher = new ProjectWatcher(repoDir, roots, Set.copyOf(config.getIgnoredDirectories()))) {
+
+                console.header("Watching");
+                console.infoLeftRight("Projects", allProjects.size());
+                console.infoLeftRight("Directories", watcher.getDirectoryCount());
+                console.infoLeftRight("Jobs", parallelism);
+
+                WatchRun run = null;
+                Set<Project> runChanged = Set.of();
+
+                while (!Thread.currentThread().isInterrupted()) {
+
+                    Set<String> changedFiles = watcher.awaitChanges(WATCH_QUIET_MILLIS);
+
+                    if (changedFiles.stream().anyMatch(f -> f.endsWith("settings.gradle") || f.endsWith("settings.gradle.kts"))) {
+                        dag = projectHelper.getDependencyTree(allProjects, repoDir);
+                    }
+
+                    Set<Project> changed = projectTrie.findAll(changedFiles);
+                    if (changed.isEmpty()) {
+                        continue;
+                    }
+
+                    // The last run's reporter saves the history and writes the trace, so it has to be done before the
+                    // next run resets them
+                    if (run != null) {
+                        if (!run.scheduler.isDone()) {
+                            console.info("Cancelling the run in progress");
+                            run.scheduler.cancel();
+                        }
+                        run.reporter.join();
+                    }
+
+                    // Whatever the last run didn't get through cleanly still needs doing
+                    if (run != null && (run.scheduler.isCancelled() || !run.scheduler.getFailures().isEmpty())) {
+                        changed.addAll(runChanged);
+                    }
+
+                    runChanged = changed;
+                    run = startWatchRun(dag, changed, args, parallelism, failurePolicy);
+
+                }
+
+            }
+
+        } catch (InterruptedException | IOException e) {
+            throw SneakyThrow.sneak(e);
+        }
+
+        return 0;
+
+    }
+
+    private WatchRun startWatchRun(ProjectGraph dag, Set<Project> changed, String[] args, int parallelism, FailurePolicy failurePolicy) {
+
+        // Upstream projects haven't changed, so only the changed projects and everything downstream of them
+        List<Project> slice = affectedClosure.getDownstream(changed, dag);
+
+        console.header("Changed projects");
+        for (Project project : changed) {
+            console.infoLeftRight(project.name, repoDir.relativize(project.path));
+        }
+        console.header("Building and testing");
+        console.infoLeftRight("Projects", slice.size());
+
+        long start = System.currentTimeMillis();
+        traceRecorder.reset();
+        TaskGraph<ProjectPhase> taskGraph = newTaskGraph(dag, slice);
+        CriticalPath<ProjectPhase> criticalPath = new CriticalPath<>(taskGraph, task -> durationHistory.estimate(task.project, task.phase));
+        ExecutorService workerThreadPool = threadHelper.newThreadPool("worker", parallelism);
+        Consumer<ProjectPhase> worker = task -> projectTasks.execute(task.project, task.phase, args);
+        TaskScheduler<ProjectPhase> scheduler = new TaskScheduler<>(taskGraph, worker, workerThreadPool, parallelism, criticalPath::getRemaining, newResourceBudget(parallelism), failurePolicy, traceQueueing(ProjectPhase::toString));
+
+        // Report when it's over without holding up the watcher. Nothing thrown here may end the watch, so it's
+        // logged instead. Each run has its own pool, since the scheduler shuts its executor down when it's done.
+        Thread reporter = threadHelper.newThreadFactory("watch").newThread(() -> {
+            try {
+                scheduler.awaitTermination(4, TimeUnit.HOURS);
+                durationHistory.save();
+                traceRecorder.write();
+                if (scheduler.isCancelled() && scheduler.getFailures().isEmpty()) {
+                    console.info("Cancelled, waiting for changes");
+                    return;
+                }
+                if (!scheduler.getFailures().isEmpty()) {
+                    reportFailures(scheduler, start);
+                } else {
+                    console.footer();
+                    console.infoLeftRight("Success! Total time", console.formatMillis(System.currentTimeMillis() - start));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                console.error("Exception while reporting the run: {}", t.toString(), t);
+            } finally {
+                threadHelper.shutdown(workerThreadPool);
+            }
+            console.info("Waiting for changes");
+        });
+        reporter.start();
+
+        return new WatchRun(scheduler, reporter);
+
+    }
+
+    // Runs a phase of small projects of the same kind that are ready together in one driver process. Only projects
+    // with recorded timings under SMALL_PROJECT_MILLIS are batched, so nothing is batched on a repo's first run.
+    private Batcher<ProjectPhase> newSmallProjectBatcher(String[] args, Map<ProjectPhase, String> cacheKeys, Set<Project> cachedProjects) {
+
+        return new Batcher<>() {
+
+            @Override
+            public Object key(ProjectPhase task) {
+                Project project = task.project;
+                if (args.length > 0 || cachedProjects.contains(project) || project.markers.isEmpty()
+                        || !durationHistory.contains(project, task.phase)
+                        || durationHistory.estimate(project, task.phase) >= SMALL_PROJECT_MILLIS) {
+                    return null;
+                }
+                return task.phase + " " + new TreeSet<>(project.markers);
+            }
+
+            @Override
+            public int maxSize() {
+                return SMALL_PROJECT_BATCH_SIZE;
+            }
+
+            @Override
+            public Map<ProjectPhase, Throwable> run(List<ProjectPhase> tasks) {
+
+                Phase phase = tasks.get(0).phase;
+                List<Project> projects = tasks.stream().map(task -> task.project).collect(Collectors.toList());
+                Map<Project, Throwable> failures = projectTasks.executeBatch(projects, phase);
+
+                Map<ProjectPhase, Throwable> taskFailures = new HashMap<>();
+                for (ProjectPhase task : tasks) {
+                    if (failures.containsKey(task.project)) {
+                        taskFailures.put(task, failures.get(task.project));
+                    } else if (cacheKeys.containsKey(task) && !Thread.currentThread().isInterrupted()) {
+                        resultCache.put(cacheKeys.get(task), task.project, phase.verb, projectTasks.getLogFile(task.project, phase));
+                    }
+                }
+
+                return taskFailures;
+
+            }
+
+        };
+
+    }
+
+    private void cachedExecute(ProjectPhase task, Map<ProjectPhase, String> keys, Set<Project> cachedProjects, BooleanSupplier execution) {
+
+        String key = keys.get(task);
+        Path logFile = projectTasks.getLogFile(task.project, task.phase);
+
+        if (cachedProjects.contains(task.project)) {
+            TraceRecorder.Span span = traceRecorder.start("cached " + task.phase.verb + " " + task.project.name, "phase");
+            resultCache.restoreLog(key, logFile);
+            span.end();
+            console.infoLeftRight("Cached " + task.phase.verb, task.project.name);
+            return;
+        }
+
+        if (execution.getAsBoolean() && key != null) {
+            resultCache.put(key, task.project, task.phase.verb, logFile);
+        }
+
+    }
+
+    // Time each node spends ready but waiting for a slot or for admission, on the trace's async tracks
+    private <T> SchedulerListener<T> traceQueueing(Function<T, String> name) {
+        Map<T, Long> readySince = new HashMap<>();
+        return new SchedulerListener<>() {
+            @Override
+            public void onReady(T node) {
+                readySince.put(node, System.nanoTime());
+            }
+            @Override
+            public void onStart(T node) {
+                Long ready = readySince.remove(node);
+                if (ready != null) {
+                    traceRecorder.async("queued " + name.apply(node), "queue", ready, System.nanoTime());
+                }
+            }
+        };
+    }
+
+    // Everything that failed, with its log, and how much didn't run because of it. Anything other than a project
+    // exiting non-zero is unexpected, so that's rethrown once reported.
+    private void reportFailures(TaskScheduler<?> scheduler, long start) {
+
+        Map<?, Throwable> failures = scheduler.getFailures();
+
+        console.header("Failed");
+        for (Map.Entry<?, Throwable> failure : failures.entrySet()) {
+            if (failure.getValue() instanceof ProjectFailedException) {
+                ProjectFailedException e = (ProjectFailedException) failure.getValue();
+                console.errorLeftRight(e.getProject().name + " (" + e.getPhase().verb + ")", e.getLogFile());
+            } else {
+                console.errorLeftRight(failure.getKey().toString(), failure.getValue().toString());
+            }
+        }
+
+        console.footer();
+        console.errorLeftRight("Failed! Total time", console.formatMillis(System.currentTimeMillis() - start));
+        console.errorLeftRight("Failures", failures.size());
+        console.errorLeftRight("Skipped", scheduler.getSkipped().size());
+
+        for (Throwable failure : failures.values()) {
+            if (!(failure instanceof ProjectFailedException)) {
+                throw SneakyThrow.sneak(failure);
+            }
+        }
+
+    }
+
+    // Each project builds after its upstream builds, then lints (if it has a lint.sh) and tests after its own build
+    // Upstream projects that aren't in the list are taken to be built already.
+    private TaskGraph<ProjectPhase> newTaskGraph(ProjectGraph dag, Collection<Project> projects) {
+        return newTaskGraph(dag, projects, new HashSet<>(projects));
+    }
+
+    // Projects that aren't tested are only built, for the ones that are to build against
+    private TaskGraph<ProjectPhase> newTaskGraph(ProjectGraph dag, Collection<Project> projects, Set<Project> tested) {
+
+        TaskGraph<ProjectPhase> graph = new TaskGraph<>();
+        Set<Project> included = new HashSet<>(projects);
+
+        for (Project project : projects) {
+
+            ProjectPhase build = new ProjectPhase(project, Phase.BUILD);
+            graph.add(build);
+
+            for (Project dependency : dag.getDependencies(project)) {
+                if (included.contains(dependency)) {
+                    graph.addDependency(build, new ProjectPhase(dependency, Phase.BUILD));
+                }
+            }
+
+            if (!tested.contains(project)) {
+                continue;
+            }
+
+            if (Files.isExecutable(project.path.resolve(Phase.LINT.script))) {
+                graph.addDependency(new ProjectPhase(project, Phase.LINT), build);
+            }
+
+            graph.addDependency(new ProjectPhase(project, Phase.TEST), build);
+
+        }
+
+        return graph;
+
+    }
+
+    // Only projects that declare weights in .monobuild/resources.json are limited by anything but the job count.
+    // The CPU budget defaults to the job count and the memory budget to what's currently available.
+    private ResourceBudget<ProjectPhase> newResourceBudget(int parallelism) {
+
+        ResourceConfig config = readConfigFile("resources.json", ResourceConfig.class);
+        if (config == null) {
+            return null;
+        }
+
+        ResourceConfig.Budget budget = config.getBudget();
+        double cpuBudget = (budget.getCpu() != null) ? budget.getCpu() : parallelism;
+        long memoryBudget = (budget.getMemory() != null) ? budget.getMemory() : systemHelper.getAvailableMemory();
+        if (memoryBudget < 0) {
+            memoryBudget = Long.MAX_VALUE;
+        }
+
+        ResourceConfig.ProjectResources defaults = config.getDefaults();
+        Map<Project, ResourceBudget.Request> requests = new HashMap<>();
+
+        return new ResourceBudget<>(cpuBudget, memoryBudget, task -> requests.computeIfAbsent(task.project, project -> {
+            ResourceConfig.ProjectResources resources = config.getProjects().getOrDefault(project.name, defaults);
+            double cpu = (resources.getCpu() != null) ? resources.getCpu() : (defaults.getCpu() != null) ? defaults.getCpu() : 1;
+            long memory = (resources.getMemory() != null) ? resources.getMemory() : (defaults.getMemory() != null) ? defaults.getMemory() : 0;
+            return new ResourceBudget.Request(cpu, memory, new HashSet<>(resources.getResources()));
+        }));
+
+    }
+
+    // null uses the configured thread count, "auto" sizes to the CPUs available to this process
+    private int resolveJobs(String jobs) {
+        if (jobs == null) {
+            return threadCount;
+        }
+        if (isAutoJobs(jobs)) {
+            return systemHelper.getAvailableCpus();
+        }
+        return Integer.parseInt(jobs);
+    }
+
+    private boolean isAutoJobs(String jobs) {
+        return "auto".equalsIgnoreCase(jobs);
+    }
+
+    // The CircleCI job a project runs in, from its top level directory
+    private String circleCiJobType(Project project) {
+
+        String jobName = "build-" + repoDir.relativize(project.path).getName(0);
+
+        if(jobName.equals("build-groovy") || jobName.equals("build-kotlin")) {
+            jobName = "build-java";
+        }
+
+        return jobName;
+
+    }
+
+    // A project's whole build, lint and test time on earlier runs
+    private long estimateProject(Project project) {
+        long estimate = durationHistory.estimate(project, Phase.BUILD) + durationHistory.estimate(project, Phase.TEST);
+        if (Files.isExecutable(project.path.resolve(Phase.LINT.script))) {
+            estimate += durationHistory.estimate(project, Phase.LINT);
+        }
+        return estimate;
+    }
+
+    // Whether every phase estimateProject counts has a recorded time, rather than a guess
+    private boolean isTimedProject(Project project) {
+        return durationHistory.contains(project, Phase.BUILD) && durationHistory.contains(project, Phase.TEST)
+            && (!Files.isExecutable(project.path.resolve(Phase.LINT.script)) || durationHistory.contains(project, Phase.LINT));
+    }
+
+    public void deleteProjectIndex() {
+        projectHelper.deleteProjectIndex();
+    }
+
+    public void setSpawnBackend(SpawnBackend spawnBackend) {
+        projectTasks.setSpawnBackend(spawnBackend);
+    }
+
     public int version() {
         outputHeader();
         return 0;
@@ -398,23 +993,7 @@ public class Monobuild {
     }
 
     private <T> T readConfigFile(String filename, Class<T> type) {
-
-        try {
-
-            Path file = repoDir.resolve(".monobuild").resolve(filename);
-
-            if(!Files.isReadable(file)) {
-                return null;
-            }
-
-            T content = JsonHelper.MAPPER.readValue(file.toFile(), type);
-
-            return content;
-
-        } catch(IOException ex) {
-            throw SneakyThrow.sneak(ex);
-        }
-
+        return configHelper.readConfigFile(repoDir, filename, type);
     }
 
     private void writeFile(String fileName, String text) {
@@ -442,19 +1021,15 @@ public class Monobuild {
         }
     }
 
-    private static class BiConsumerTask implements Consumer<Project> {
-
-        private final String[] args;
-        private final BiConsumer<Project, String[]> biconsumer;
+    // A watch run's scheduler and the thread that reports on it once it's over
+    private static class WatchRun {
 
-        private BiConsumerTask(String[] args, BiConsumer biconsumer) {
-            this.args = args;
-            this.biconsumer = biconsumer;
-        }
+        private final TaskScheduler<ProjectPhase> scheduler;
+        private final Thread reporter;
 
-        @Override
-        public void accept(Project project) {
-            biconsumer.accept(project, args);
+        private WatchRun(TaskScheduler<ProjectPhase> scheduler, Thread reporter) {
+            this.scheduler = scheduler;
+            this.reporter = reporter;
         }
 
     }
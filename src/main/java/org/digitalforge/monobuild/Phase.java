@@ -0,0 +1,20 @@
+package org.digitalforge.monobuild;
+
+public enum Phase {
+
+    BUILD("build", "building"),
+    LINT("lint", "linting"),
+    TEST("test", "testing"),
+    DEPLOY("deploy", "deploying");
+
+    public final String verb;
+    public final String gerund;
+    public final String script;
+
+    Phase(String verb, String gerund) {
+        this.verb = verb;
+        this.gerund = gerund;
+        this.script = verb + ".sh";
+    }
+
+}
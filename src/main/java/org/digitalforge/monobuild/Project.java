@@ -2,15 +2,23 @@ package org.digitalforge.monobuild;
 
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.Set;
 
 public class Project implements Comparable<Project> {
 
     public final String name;
     public final Path path;
+    // The marker files, like settings.gradle or package.json, that made this directory a project
+    public final Set<String> markers;
 
     public Project(String name, Path path) {
+        this(name, path, Set.of());
+    }
+
+    public Project(String name, Path path, Set<String> markers) {
         this.name = name;
         this.path = path;
+        this.markers = markers;
     }
 
     @Override
@@ -0,0 +1,39 @@
+package org.digitalforge.monobuild;
+
+import java.nio.file.Path;
+
+// A project's script ran and exited with a non-zero status
+public class ProjectFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Project project;
+    private final Phase phase;
+    private final int exitCode;
+    private final Path logFile;
+
+    public ProjectFailedException(Project project, Phase phase, int exitCode, Path logFile) {
+        super("Failed to " + phase.verb + " " + project.name + " (exit code " + exitCode + ")");
+        this.project = project;
+        this.phase = phase;
+        this.exitCode = exitCode;
+        this.logFile = logFile;
+    }
+
+    public Project getProject() {
+        return project;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.digitalforge.monobuild;
+
+import java.util.Objects;
+
+public class ProjectPhase implements Comparable<ProjectPhase> {
+
+    public final Project project;
+    public final Phase phase;
+
+    public ProjectPhase(Project project, Phase phase) {
+        this.project = project;
+        this.phase = phase;
+    }
+
+    @Override
+    public int compareTo(ProjectPhase other) {
+        int result = project.compareTo(other.project);
+        return (result != 0) ? result : phase.compareTo(other.phase);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ProjectPhase that = (ProjectPhase) o;
+
+        if (!Objects.equals(project, that.project)) return false;
+        return phase == that.phase;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = project != null ? project.hashCode() : 0;
+        result = 31 * result + (phase != null ? phase.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return project.name + ":" + phase.verb;
+    }
+
+}
@@ -12,8 +12,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -21,156 +25,340 @@ import javax.inject.Singleton;
 import com.pty4j.PtyProcessBuilder;
 
 import org.digitalforge.monobuild.helper.StreamHelper;
+import org.digitalforge.monobuild.helper.TailOutputStream;
+import org.digitalforge.monobuild.history.DurationHistory;
 import org.digitalforge.monobuild.logging.console.Console;
+import org.digitalforge.monobuild.trace.TraceRecorder;
 import org.digitalforge.sneakythrow.SneakyThrow;
 
 @Singleton
 public class ProjectTasks {
 
+    // How much of a failed project's output to print; the full output is always in its log file
+    private static final int FAILURE_TAIL_BYTES = 256 * 1024;
+    private static final int FAILURE_TAIL_LINES = 200;
+
+    // What a batch driver prints before each project's index and exit code
+    private static final String BATCH_MARKER = "@@monobuild-batch";
+
+    // How long an interrupted project's processes get to exit after SIGTERM before they're killed
+    private static final long DESTROY_GRACE_SECONDS = 10;
+
     private final Path logDir;
     private final Path repoDir;
     private final Console console;
     private final StreamHelper streamHelper;
+    private final DurationHistory durationHistory;
+    private final TraceRecorder traceRecorder;
+    private final long processTimeoutMillis;
+
+    private final SpawnBackend defaultSpawnBackend;
+    private volatile SpawnBackend spawnBackend;
 
     @Inject
     public ProjectTasks(@Named("logDir") Path logDir,
                         @Named("repoDir") Path repoDir,
                         Console console,
-                        StreamHelper streamHelper) {
+                        StreamHelper streamHelper,
+                        DurationHistory durationHistory,
+                        TraceRecorder traceRecorder,
+                        @Named("processTimeoutMillis") Long processTimeoutMillis,
+                        @Named("spawnBackend") SpawnBackend spawnBackend) {
         this.logDir = logDir;
         this.repoDir = repoDir;
         this.console = console;
         this.streamHelper = streamHelper;
+        this.durationHistory = durationHistory;
+        this.traceRecorder = traceRecorder;
+        this.processTimeoutMillis = processTimeoutMillis;
+        this.defaultSpawnBackend = spawnBackend;
+        this.spawnBackend = spawnBackend;
     }
 
-    public void buildProject(Project project, String[] args) {
-
-        List<String> cmd = new ArrayList<>(3 + args.length);
-        cmd.addAll(List.of("sh", "-c", "./build.sh"));
-        cmd.addAll(List.of(args));
+    // Null goes back to the configured default, so one run's choice doesn't stick to a long-lived instance
+    public void setSpawnBackend(SpawnBackend spawnBackend) {
+        this.spawnBackend = (spawnBackend != null) ? spawnBackend : defaultSpawnBackend;
+    }
 
-        timedSafeExecute(project, start -> {
+    public boolean buildProject(Project project, String[] args) {
+        return execute(project, Phase.BUILD, args);
+    }
 
-            console.infoLeftRight("Starting to build", project.name);
+    public boolean deployProject(Project project, String[] args) {
 
-            // Use JetBrains' PtyProcessBuilder to capture colored output
-            PtyProcessBuilder processBuilder = new PtyProcessBuilder()
-                .setCommand(cmd.toArray(new String[cmd.size()]))
-                .setDirectory(project.path.toString())
-                .setRedirectErrorStream(true);
-            processBuilder.setEnvironment(new HashMap<>(System.getenv()));
+        Path deployScript = project.path.resolve(Phase.DEPLOY.script);
 
-            Process process = processBuilder.start();
+        if(!Files.exists(deployScript) || !Files.isExecutable(deployScript)) {
+            return true;
+        }
 
-            // Stream the output to a log file and return a reference to the OutputStream
-            Path logFile = logDir.resolve(project.name + ".build.log");
-            CompletableFuture<String> output = streamHelper.forkToFileAndString(process.getInputStream(), logFile);
+        return execute(project, Phase.DEPLOY, args);
 
-            if(process.waitFor() != 0) {
-                System.out.println(output.get());
-                System.out.flush();
-                long elapsed = System.currentTimeMillis() - start;
-                console.errorLeftRight("Failed to build (%s)", console.formatMillis(elapsed), project.name);
-                System.exit(1);
-            }
-            else {
-                long elapsed = System.currentTimeMillis() - start;
-                console.infoLeftRight("Finished building (%s)", console.formatMillis(elapsed), project.name);
-            }
-
-        });
+    }
 
+    public boolean testProject(Project project, String[] args) {
+        return execute(project, Phase.TEST, args);
     }
 
-    public void deployProject(Project project, String[] args) {
+    public boolean execute(Project project, Phase phase, String[] args) {
 
         List<String> cmd = new ArrayList<>(3 + args.length);
-        cmd.addAll(List.of("sh", "-c", "./deploy.sh"));
+        cmd.addAll(List.of("sh", "-c", "./" + phase.script));
         cmd.addAll(List.of(args));
 
-        Path deployScript = project.path.resolve("deploy.sh");
+        return timedSafeExecute(project, start -> {
+
+            console.infoLeftRight("Starting to " + phase.verb, project.name);
+
+            try (TraceRecorder.Span span = traceRecorder.start(phase.verb + " " + project.name, "phase")) {
+
+                span.arg("project", project.name).arg("phase", phase.verb);
+
+                Path logFile = getLogFile(project, phase);
+                SpawnBackend backend = spawnBackend;
+
+                TraceRecorder.Span spawn = traceRecorder.start("spawn", "process").arg("backend", backend.name().toLowerCase());
+                Process process;
+                CompletableFuture<TailOutputStream> output = null;
+
+                if (backend == SpawnBackend.PTY) {
+
+                    // Use JetBrains' PtyProcessBuilder to capture colored output
+                    PtyProcessBuilder processBuilder = new PtyProcessBuilder()
+                        .setCommand(cmd.toArray(new String[cmd.size()]))
+                        .setDirectory(project.path.toString())
+                        .setRedirectErrorStream(true);
+                    processBuilder.setEnvironment(new HashMap<>(System.getenv()));
+                    process = processBuilder.start();
+
+                    // Stream the output to a log file, keeping just the end of it in case it has to be shown
+                    output = streamHelper.forkToFileWithTail(process.getInputStream(), logFile, FAILURE_TAIL_BYTES);
+
+                } else {
+
+                    // The child writes its output straight into the log file, and gets no input
+                    process = new ProcessBuilder(cmd)
+                        .directory(project.path.toFile())
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.to(logFile.toFile()))
+                        .start();
+                    process.getOutputStream().close();
+
+                }
+
+                spawn.end();
+
+                int exitCode;
+                try (TraceRecorder.Span running = traceRecorder.start("running", "process")) {
+                    boolean timedOut = !awaitProcess(process, processTimeoutMillis);
+                    if (timedOut) {
+                        console.errorLeftRight("Timed out after %s", console.formatMillis(processTimeoutMillis), project.name);
+                        destroyProcessTree(process);
+                    }
+                    exitCode = process.waitFor();
+                    // A script that traps the signal and exits cleanly still didn't finish in time
+                    if (timedOut && exitCode == 0) {
+                        exitCode = -1;
+                    }
+                    running.arg("exitCode", exitCode);
+                } catch (InterruptedException e) {
+                    destroyProcessTree(process);
+                    throw e;
+                }
+
+                // A pumped log is complete once the pump has seen the end of the output; a redirected one is only
+                // read back if it has to be shown
+                TailOutputStream tail = null;
+                if (output != null) {
+                    TraceRecorder.Span flush = traceRecorder.start("log flush", "process");
+                    try {
+                        tail = output.get();
+                    } finally {
+                        flush.end();
+                    }
+                } else if (exitCode != 0) {
+                    tail = streamHelper.readTail(logFile, FAILURE_TAIL_BYTES);
+                }
+
+                if(exitCode != 0) {
+                    if (tail.isTruncated(FAILURE_TAIL_LINES)) {
+                        console.info("... showing the end of the output, the rest is in {}", logFile);
+                    }
+                    System.out.println(tail.getTail(FAILURE_TAIL_LINES));
+                    System.out.flush();
+                    long elapsed = System.currentTimeMillis() - start;
+                    console.errorLeftRight("Failed to " + phase.verb + " (%s)", console.formatMillis(elapsed), project.name);
+                    throw new ProjectFailedException(project, phase, exitCode, logFile);
+                }
+                else {
+                    long elapsed = System.currentTimeMillis() - start;
+                    durationHistory.record(project, phase, elapsed);
+                    console.infoLeftRight("Finished " + phase.gerund + " (%s)", console.formatMillis(elapsed), project.name);
+                }
 
-        if(!Files.exists(deployScript) || !Files.isExecutable(deployScript)) {
-            return;
-        }
+            }
 
-        timedSafeExecute(project, start -> {
+        });
 
-            // Use JetBrains' PtyProcessBuilder to capture colored output
-            PtyProcessBuilder processBuilder = new PtyProcessBuilder()
-                .setCommand(cmd.toArray(new String[cmd.size()]))
-                .setDirectory(project.path.toString())
-                .setRedirectErrorStream(true);
-            processBuilder.setEnvironment(new HashMap<>(System.getenv()));
+    }
 
-            Process process = processBuilder.start();
+    // Run one phase of several small projects in a single driver process, one after another, saving a spawn (and a
+    // pseudo-terminal) per project. Each project's output still goes to its own log file, and the driver reports each
+    // exit code as it goes, so projects finish, fail and are timed individually. Returns the failures, which include
+    // every project the driver never reported on; if interrupted, the thread's interrupt flag is left set.
+    public Map<Project, Throwable> executeBatch(List<Project> projects, Phase phase) {
+
+        Map<Project, Throwable> failures = new ConcurrentHashMap<>();
+        String names = projects.stream().map(p -> p.name).collect(Collectors.joining(", "));
+        console.infoLeftRight("Starting to " + phase.verb + " (batch of " + projects.size() + ")", names);
+
+        StringBuilder driver = new StringBuilder("#!/bin/sh\n");
+        for (int i = 0; i < projects.size(); i++) {
+            Project project = projects.get(i);
+            driver.append("( cd ").append(quote(project.path.toString())).append(" && exec ./").append(phase.script).append(" )")
+                .append(" > ").append(quote(getLogFile(project, phase).toString())).append(" 2>&1 < /dev/null\n")
+                .append("echo \"").append(BATCH_MARKER).append(' ').append(i).append(" $?\"\n");
+        }
 
-            // Stream the output to a log file and return a reference to the OutputStream
-            Path logFile = logDir.resolve(project.name + ".deploy.log");
-            CompletableFuture<String> output = streamHelper.forkToFileAndString(process.getInputStream(), logFile);
+        long[] ends = new long[projects.size() + 1];
+
+        try (TraceRecorder.Span span = traceRecorder.start(phase.verb + " batch", "batch")) {
+
+            span.arg("projects", names).arg("phase", phase.verb);
+
+            Path driverFile = logDir.resolve("batch-" + phase.verb + "-" + projects.get(0).name + ".sh");
+            Files.writeString(driverFile, driver);
+
+            ends[0] = System.nanoTime();
+            Process process = new ProcessBuilder("sh", driverFile.toString())
+                .redirectErrorStream(true)
+                .start();
+            process.getOutputStream().close();
+
+            CompletableFuture<Void> markers = streamHelper.forkLines(process.getInputStream(), line -> {
+
+                if (!line.startsWith(BATCH_MARKER + " ")) {
+                    return;
+                }
+                String[] parts = line.split(" ");
+                int index = Integer.parseInt(parts[1]);
+                int exitCode = Integer.parseInt(parts[2]);
+                ends[index + 1] = System.nanoTime();
+
+                Project project = projects.get(index);
+                long elapsed = (ends[index + 1] - ends[index]) / 1_000_000;
+
+                if (exitCode != 0) {
+                    Path logFile = getLogFile(project, phase);
+                    try {
+                        TailOutputStream tail = streamHelper.readTail(logFile, FAILURE_TAIL_BYTES);
+                        if (tail.isTruncated(FAILURE_TAIL_LINES)) {
+                            console.info("... showing the end of the output, the rest is in {}", logFile);
+                        }
+                        System.out.println(tail.getTail(FAILURE_TAIL_LINES));
+                        System.out.flush();
+                    } catch (IOException e) {
+                        console.warn("Unable to read {}: {}", logFile, e.getMessage());
+                    }
+                    console.errorLeftRight("Failed to " + phase.verb + " (%s)", console.formatMillis(elapsed), project.name);
+                    failures.put(project, new ProjectFailedException(project, phase, exitCode, logFile));
+                } else {
+                    durationHistory.record(project, phase, elapsed);
+                    console.infoLeftRight("Finished " + phase.gerund + " (%s)", console.formatMillis(elapsed), project.name);
+                }
+
+            });
+
+            try {
+                // Each project in the batch gets the timeout, so the driver gets all of theirs put together
+                if (!awaitProcess(process, processTimeoutMillis * projects.size())) {
+                    console.errorLeftRight("Timed out after %s (batch of %s)", console.formatMillis(processTimeoutMillis * projects.size()), projects.size(), names);
+                    destroyProcessTree(process);
+                }
+                markers.get();
+            } catch (InterruptedException e) {
+                // Leave the flag set so the caller doesn't cache anything; the unreported projects fail below
+                destroyProcessTree(process);
+                console.errorLeftRight("Interrupted while executing (batch of %s)", projects.size(), names);
+                Thread.currentThread().interrupt();
+            }
 
-            if(process.waitFor() != 0) {
-                System.out.println(output.get());
-                System.out.flush();
-                long elapsed = System.currentTimeMillis() - start;
-                console.errorLeftRight("Failed to deploy (%s)", console.formatMillis(elapsed), project.name);
-                System.exit(1);
+            for (int i = 0; i < projects.size(); i++) {
+                if (ends[i + 1] != 0) {
+                    traceRecorder.complete(phase.verb + " " + projects.get(i).name, "phase", ends[i], ends[i + 1]);
+                }
             }
-            else {
-                long elapsed = System.currentTimeMillis() - start;
-                console.infoLeftRight("Finished deploying (%s)", console.formatMillis(elapsed), project.name);
+
+        } catch (IOException | ExecutionException e) {
+            console.errorLeftRight("Exception while executing (batch of %s)", projects.size(), names);
+            e.printStackTrace();
+            throw SneakyThrow.sneak(e);
+        }
+
+        // A project the driver never reported on didn't finish
+        for (int i = 0; i < projects.size(); i++) {
+            if (ends[i + 1] == 0) {
+                failures.put(projects.get(i), new ProjectFailedException(projects.get(i), phase, -1, getLogFile(projects.get(i), phase)));
             }
+        }
 
-        });
+        return failures;
 
     }
 
-    public void testProject(Project project, String[] args) {
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
 
-        List<String> cmd = new ArrayList<>(3 + args.length);
-        cmd.addAll(List.of("sh", "-c", "./test.sh"));
-        cmd.addAll(List.of(args));
+    public Path getLogFile(Project project, Phase phase) {
+        return logDir.resolve(project.name + "." + phase.verb + ".log");
+    }
 
-        timedSafeExecute(project, start -> {
+    // False if the process is still running once the timeout is up; a timeout of 0 waits for as long as it takes
+    private static boolean awaitProcess(Process process, long timeoutMillis) throws InterruptedException {
+        if (timeoutMillis <= 0) {
+            process.waitFor();
+            return true;
+        }
+        return process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
 
-            // Use JetBrains' PtyProcessBuilder to capture colored output
-            PtyProcessBuilder processBuilder = new PtyProcessBuilder()
-                .setCommand(cmd.toArray(new String[cmd.size()]))
-                .setDirectory(project.path.toString())
-                .setRedirectErrorStream(true);
-            processBuilder.setEnvironment(new HashMap<>(System.getenv()));
+    // Ask the process and everything it started to stop, then kill whatever is still around after the grace period
+    private void destroyProcessTree(Process process) {
 
-            Process process = processBuilder.start();
+        List<ProcessHandle> descendants;
+        try {
+            descendants = ProcessHandle.of(process.pid()).map(h -> h.descendants().collect(Collectors.toList())).orElse(List.of());
+        } catch (UnsupportedOperationException e) {
+            descendants = List.of();
+        }
 
-            // Stream the output to a log file and return a reference to the OutputStream
-            Path logFile = logDir.resolve(project.name + ".test.log");
-            CompletableFuture<String> output = streamHelper.forkToFileAndString(process.getInputStream(), logFile);
+        descendants.forEach(ProcessHandle::destroy);
+        process.destroy();
 
-            if(process.waitFor() != 0) {
-                System.out.println(output.get());
-                System.out.flush();
-                long elapsed = System.currentTimeMillis() - start;
-                console.errorLeftRight("Failed to test (%s)", console.formatMillis(elapsed), project.name);
-                System.exit(1);
-            }
-            else {
-                long elapsed = System.currentTimeMillis() - start;
-                console.infoLeftRight("Finished testing (%s)", console.formatMillis(elapsed), project.name);
+        try {
+            if (!process.waitFor(DESTROY_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
             }
-
-        });
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        descendants.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
 
     }
 
-    private void timedSafeExecute(Project project, TimedTask<Long> timedTask) {
+    private boolean timedSafeExecute(Project project, TimedTask<Long> timedTask) {
 
         long start = System.currentTimeMillis();
 
         try {
             timedTask.accept(start);
+            return true;
         } catch (InterruptedException e) {
             long elapsed = System.currentTimeMillis() - start;
             console.errorLeftRight("Interrupted while executing (%s)", console.formatMillis(elapsed), repoDir.relativize(project.path));
+            return false;
         } catch (IOException | ExecutionException e) {
             long elapsed = System.currentTimeMillis() - start;
             console.errorLeftRight("Exception while executing (%s)", console.formatMillis(elapsed), repoDir.relativize(project.path));
@@ -0,0 +1,12 @@
+package org.digitalforge.monobuild;
+
+// How project scripts are started
+public enum SpawnBackend {
+
+    // Through a pseudo-terminal, so scripts keep their colored output; the JVM pumps it into the log file
+    PTY,
+
+    // A plain child process writing straight into its log file, with no terminal and no copying through the JVM
+    PLAIN
+
+}
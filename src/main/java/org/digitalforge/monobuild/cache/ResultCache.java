@@ -0,0 +1,291 @@
+package org.digitalforge.monobuild.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.eclipse.jgit.lib.Constants;
+
+import org.digitalforge.monobuild.Project;
+import org.digitalforge.monobuild.graph.ProjectGraph;
+import org.digitalforge.monobuild.helper.HashHelper;
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.helper.RepoHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+import org.digitalforge.sneakythrow.SneakyThrow;
+
+// Successful build/test results, keyed by the content of each project and everything upstream of it
+@Singleton
+public class ResultCache {
+
+    // Bump this whenever the key layout changes so old entries are never mistaken for new ones
+    private static final String KEY_VERSION = "monobuild-cache-1";
+
+    private static final String RESULT_FILE = "result.json";
+    private static final String LOG_FILE = "output.log";
+
+    private final Path cacheDir;
+    private final Long maxBytes;
+    private final Path repoDir;
+    private final Console console;
+    private final RepoHelper repoHelper;
+
+    @Inject
+    public ResultCache(@Named("cacheDir") Path cacheDir,
+                       @Named("cacheMaxBytes") Long maxBytes,
+                       @Named("repoDir") Path repoDir,
+                       Console console,
+                       RepoHelper repoHelper) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        this.repoDir = repoDir;
+        this.console = console;
+        this.repoHelper = repoHelper;
+    }
+
+    // Fingerprint every project from its committed source tree and the fingerprints of its upstream projects.
+    // Projects with uncommitted changes, and everything downstream of them, get no fingerprint and are never cached.
+    public Map<Project, String> fingerprint(ProjectGraph graph) throws IOException {
+
+        Map<Project, String> relativePaths = new HashMap<>();
+        for (Project project : graph.getProjects()) {
+            relativePaths.put(project, repoDir.relativize(project.path).toString());
+        }
+
+        Map<String, String> treeIds = repoHelper.getTreeIds(repoDir, Constants.HEAD, relativePaths.values());
+        Set<String> uncommitted = repoHelper.getUncommittedPaths(repoDir);
+
+        Map<Project, String> fingerprints = new HashMap<>();
+        Map<Project, String> memo = new HashMap<>();
+        for (Project project : graph.getProjects()) {
+            String fingerprint = fingerprint(project, graph, relativePaths, treeIds, uncommitted, memo);
+            if (fingerprint != null) {
+                fingerprints.put(project, fingerprint);
+            }
+        }
+
+        return fingerprints;
+
+    }
+
+    public String key(String fingerprint, String phase, String[] args) {
+        List<String> parts = new ArrayList<>(2 + args.length);
+        parts.add(fingerprint);
+        parts.add(phase);
+        parts.addAll(List.of(args));
+        return sha256(parts);
+    }
+
+    public boolean contains(String key) {
+
+        Path result = entryDir(key).resolve(RESULT_FILE);
+        if (!Files.isRegularFile(result)) {
+            return false;
+        }
+
+        // Touch the entry so eviction treats it as recently used
+        try {
+            Files.setLastModifiedTime(result, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            return false;
+        }
+
+        return true;
+
+    }
+
+    public void restoreLog(String key, Path logFile) {
+        try {
+            Path cachedLog = entryDir(key).resolve(LOG_FILE);
+            if (Files.exists(cachedLog)) {
+                Files.copy(cachedLog, logFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw SneakyThrow.sneak(e);
+        }
+    }
+
+    public void put(String key, Project project, String phase, Path logFile) {
+
+        Path entryDir = entryDir(key);
+        if (Files.exists(entryDir)) {
+            return;
+        }
+
+        try {
+
+            // Write to a temporary directory first and move it into place, so a half-written entry is never visible
+            Files.createDirectories(entryDir.getParent());
+            Path tmpDir = Files.createTempDirectory(entryDir.getParent(), key + ".tmp");
+
+            if (Files.exists(logFile)) {
+                Files.copy(logFile, tmpDir.resolve(LOG_FILE));
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("project", project.name);
+            result.put("path", repoDir.relativize(project.path).toString());
+            result.put("phase", phase);
+            result.put("time", System.currentTimeMillis());
+            JsonHelper.MAPPER.writeValue(tmpDir.resolve(RESULT_FILE).toFile(), result);
+
+            try {
+                Files.move(tmpDir, entryDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Another run stored the same result first
+                deleteRecursively(tmpDir);
+            }
+
+        } catch (IOException e) {
+            console.warn("Unable to cache {} result for {}: {}", phase, project.name, e.getMessage());
+        }
+
+    }
+
+    // Delete the least recently used entries until the cache fits within its size limit
+    public void evict() {
+
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> shards = Files.list(cacheDir)) {
+            for (Path shard : shards.filter(Files::isDirectory).collect(Collectors.toList())) {
+                try (Stream<Path> dirs = Files.list(shard)) {
+                    for (Path dir : dirs.filter(d -> Files.isDirectory(d) && !d.getFileName().toString().contains(".tmp")).collect(Collectors.toList())) {
+                        entries.add(new Entry(dir));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw SneakyThrow.sneak(e);
+        }
+
+        long total = entries.stream().mapToLong(e -> e.size).sum();
+        if (total <= maxBytes) {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            deleteRecursively(entry.dir);
+            total -= entry.size;
+        }
+
+    }
+
+    private String fingerprint(Project project,
+                               ProjectGraph graph,
+                               Map<Project, String> relativePaths,
+                               Map<String, String> treeIds,
+                               Set<String> uncommitted,
+                               Map<Project, String> memo) {
+
+        if (memo.containsKey(project)) {
+            return memo.get(project);
+        }
+
+        String relativePath = relativePaths.get(project);
+        String treeId = treeIds.get(relativePath);
+        String fingerprint = null;
+
+        if (treeId != null && !isDirty(relativePath, uncommitted)) {
+
+            List<String> parts = new ArrayList<>();
+            parts.add(relativePath);
+            parts.add(treeId);
+
+            List<Project> upstream = graph.getDependencies(project).stream()
+                    .sorted()
+                    .collect(Collectors.toList());
+
+            for (Project dependency : upstream) {
+                String upstreamFingerprint = fingerprint(dependency, graph, relativePaths, treeIds, uncommitted, memo);
+                if (upstreamFingerprint == null) {
+                    parts = null;
+                    break;
+                }
+                parts.add(upstreamFingerprint);
+            }
+
+            if (parts != null) {
+                fingerprint = sha256(parts);
+            }
+
+        }
+
+        memo.put(project, fingerprint);
+        return fingerprint;
+
+    }
+
+    private boolean isDirty(String relativePath, Set<String> uncommitted) {
+        if (relativePath.isEmpty()) {
+            return !uncommitted.isEmpty();
+        }
+        String prefix = relativePath + "/";
+        for (String path : uncommitted) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Path entryDir(String key) {
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static String sha256(List<String> parts) {
+        List<String> versioned = new ArrayList<>(parts.size() + 1);
+        versioned.add(KEY_VERSION);
+        versioned.addAll(parts);
+        return HashHelper.sha256(versioned);
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            // Best effort, the next eviction will try again
+        }
+    }
+
+    private static class Entry {
+
+        private final Path dir;
+        private final long size;
+        private final long lastUsed;
+
+        private Entry(Path dir) throws IOException {
+            this.dir = dir;
+            long size = 0;
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    size += Files.size(file);
+                }
+            }
+            this.size = size;
+            Path result = dir.resolve(RESULT_FILE);
+            this.lastUsed = Files.exists(result) ? Files.getLastModifiedTime(result).toMillis() : 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+package org.digitalforge.monobuild.circleci;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.digitalforge.monobuild.Project;
+import org.digitalforge.monobuild.graph.ProjectGraph;
+
+// Groups projects into CircleCI jobs. A project whose recorded time is under its job type's budget joins a batch of
+// the same type that already holds one of its dependencies, or failing that one that needs the same upstream jobs,
+// as long as the batch stays within budget and merging it doesn't make two jobs require each other. Everything else,
+// including any project that has never been timed, gets a job of its own. Projects are taken in dependency order, so each batch lists its projects in build order.
+public class JobBatcher {
+
+    private final ProjectGraph graph;
+    private final ToLongFunction<Project> estimate;
+    private final Predicate<Project> timed;
+    private final Function<Project, String> jobType;
+    private final ToLongFunction<String> budget;
+
+    public JobBatcher(ProjectGraph graph, ToLongFunction<Project> estimate, Predicate<Project> timed, Function<Project, String> jobType, ToLongFunction<String> budget) {
+        this.graph = graph;
+        this.estimate = estimate;
+        this.timed = timed;
+        this.jobType = jobType;
+        this.budget = budget;
+    }
+
+    public List<Batch> batch(Collection<Project> projects) {
+
+        Set<Project> included = new HashSet<>(projects);
+        List<Batch> batches = new ArrayList<>();
+        Map<Project, Batch> batchOf = new HashMap<>();
+
+        for (Project project : graph.getTopologicalOrder()) {
+
+            if (!included.contains(project)) {
+                continue;
+            }
+
+            // A guessed time could hide a long project in a batch, so only recorded times are trusted
+            String type = jobType.apply(project);
+            boolean batchable = timed.test(project);
+            long cost = batchable ? estimate.applyAsLong(project) : 0;
+            long limit = budget.applyAsLong(type);
+
+            Set<Batch> upstream = new LinkedHashSet<>();
+            for (Project dependency : graph.getDependencies(project)) {
+                if (batchOf.containsKey(dependency)) {
+                    upstream.add(batchOf.get(dependency));
+                }
+            }
+
+            Batch target = null;
+            if (batchable && cost < limit) {
+                target = findBatch(batches, type, cost, limit, upstream);
+            }
+            if (target == null) {
+                target = new Batch(type, batchable);
+                batches.add(target);
+            }
+
+            target.projects.add(project);
+            target.cost += cost;
+            for (Batch batch : upstream) {
+                if (batch != target) {
+                    target.requires.add(batch);
+                }
+            }
+            batchOf.put(project, target);
+
+        }
+
+        // Anything not in the graph can't be placed by dependency order, so it runs alone
+        for (Project project : projects) {
+            if (!batchOf.containsKey(project)) {
+                Batch batch = new Batch(jobType.apply(project), false);
+                batch.projects.add(project);
+                batches.add(batch);
+                batchOf.put(project, batch);
+            }
+        }
+
+        return batches;
+
+    }
+
+    private Batch findBatch(List<Batch> batches, String type, long cost, long limit, Set<Batch> upstream) {
+
+        Batch sibling = null;
+
+        for (Batch batch : batches) {
+
+            if (!batch.type.equals(type) || batch.cost + cost > limit || !batch.isBatchable(limit)) {
+                continue;
+            }
+
+            // Joining a batch that some other upstream job depends on would make the two jobs require each other
+            if (createsCycle(batch, upstream)) {
+                continue;
+            }
+
+            if (upstream.contains(batch)) {
+                return batch;
+            }
+            if (sibling == null && batch.requires.equals(upstream)) {
+                sibling = batch;
+            }
+
+        }
+
+        return sibling;
+
+    }
+
+    private boolean createsCycle(Batch batch, Set<Batch> upstream) {
+
+        Deque<Batch> queue = new ArrayDeque<>();
+        Set<Batch> seen = new HashSet<>();
+        for (Batch other : upstream) {
+            if (other != batch) {
+                queue.add(other);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Batch next = queue.poll();
+            if (next == batch) {
+                return true;
+            }
+            if (seen.add(next)) {
+                queue.addAll(next.requires);
+            }
+        }
+
+        return false;
+
+    }
+
+    public static class Batch {
+
+        public final String type;
+        public final List<Project> projects = new ArrayList<>();
+        public final Set<Batch> requires = new LinkedHashSet<>();
+
+        private final boolean batchable;
+        private long cost;
+
+        private Batch(String type, boolean batchable) {
+            this.type = type;
+            this.batchable = batchable;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        // A project that was never timed, or used up the budget on its own, keeps its job to itself
+        private boolean isBatchable(long limit) {
+            return batchable && cost < limit;
+        }
+
+    }
+
+}
@@ -3,17 +3,25 @@ package org.digitalforge.monobuild.command;
 import java.util.List;
 import java.util.concurrent.Callable;
 import javax.inject.Inject;
-import javax.inject.Singleton;
+import javax.inject.Provider;
 
 import picocli.CommandLine;
 
 import org.digitalforge.monobuild.Monobuild;
-
-@Singleton
+import org.digitalforge.monobuild.SpawnBackend;
+import org.digitalforge.monobuild.daemon.DaemonClient;
+import org.digitalforge.monobuild.daemon.DaemonServer;
+import org.digitalforge.monobuild.graph.ClosurePolicy;
+import org.digitalforge.monobuild.graph.Shard;
+import org.digitalforge.monobuild.scheduler.FailurePolicy;
+
+// Not a singleton: picocli parses into the fields, so anything that runs more than one command needs a fresh instance
 @CommandLine.Command(name = "monobuild", description = "Run monobuild")
 public class MonobuildCommand implements Callable<Integer> {
 
     private final Monobuild monobuild;
+    private final DaemonServer daemonServer;
+    private final Provider<MonobuildCommand> commands;
 
     @CommandLine.Spec
     private CommandLine.Model.CommandSpec spec;
@@ -24,12 +32,38 @@ public class MonobuildCommand implements Callable<Integer> {
     @CommandLine.ArgGroup(exclusive = true)
     private BuildOptions buildOptions;
 
+    @CommandLine.Option(names = {"-j", "--jobs"}, paramLabel = "<n|auto>", description = "How many projects to run at once, or 'auto' to size from the available CPUs and back off under load")
+    private String jobs;
+
+    @CommandLine.Option(names = {"--no-cache"}, description = "Always build and test, ignoring results cached from earlier runs")
+    private boolean noCache;
+
+    @CommandLine.Option(names = {"-k", "--keep-going"}, description = "After a project fails, keep running everything that doesn't depend on it and report every failure at the end")
+    private boolean keepGoing;
+
+    @CommandLine.Option(names = {"--shard"}, paramLabel = "<i/n>", description = "Build and test only this CI node's share of the affected projects, e.g. 2/4")
+    private String shard;
+
+    @CommandLine.Option(names = {"--spawn"}, paramLabel = "<pty|plain>", description = "Start scripts in a pseudo-terminal to keep colored output, or as plain processes writing straight to their logs (default: plain when CI is set, otherwise pty)")
+    private String spawn;
+
+    @CommandLine.Option(names = {"--batch-small"}, description = "Run a phase of small projects of the same kind that are ready together in one process, based on earlier runs' timings")
+    private boolean batchSmall;
+
+    @CommandLine.Option(names = {"--closure"}, paramLabel = "<policy>", description = "Which affected projects to test: 'full' tests upstream, changed and downstream projects; 'test-changed' only builds upstream projects; 'depth=N' also stops N levels downstream (default: full)")
+    private String closure;
+
+    @CommandLine.Option(names = {"--rebuild-index"}, description = "Discard the saved project index and walk the repository again")
+    private boolean rebuildIndex;
+
     @CommandLine.Parameters
     private List<String> parameters;
 
     @Inject
-    public MonobuildCommand(Monobuild monobuild) {
+    public MonobuildCommand(Monobuild monobuild, DaemonServer daemonServer, Provider<MonobuildCommand> commands) {
         this.monobuild = monobuild;
+        this.daemonServer = daemonServer;
+        this.commands = commands;
     }
 
     @Override
@@ -46,14 +80,55 @@ public class MonobuildCommand implements Callable<Integer> {
             }
         }
 
-        return monobuild.buildTest(parameters.toArray(new String[parameters.size()]), baseRef);
+        prepare();
+        return monobuild.buildTest(parameters.toArray(new String[parameters.size()]), baseRef, !noCache, validateJobs(), failurePolicy(), validateShard(), batchSmall, validateClosure());
     }
 
     @CommandLine.Command(name = "graph", description = "Find and print the graph of the monorepo")
     public Integer graph(@CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Display this help and exit") boolean help) {
+        prepare();
         return monobuild.graph();
     }
 
+    @CommandLine.Command(name = "affected", description = "Print the changed projects and every project affected by them")
+    public Integer affected(@CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Display this help and exit") boolean help) {
+
+        String baseRef = null;
+        if(buildOptions != null) {
+            baseRef = buildOptions.baseTag;
+            if(baseRef == null) {
+                baseRef = buildOptions.baseBranch;
+            }
+        }
+
+        prepare();
+        return monobuild.affected(baseRef);
+
+    }
+
+    @CommandLine.Command(name = "daemon", description = "Keep this repo's project graph in memory and answer graph and affected from it")
+    public Integer daemon(@CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Display this help and exit") boolean help,
+                          @CommandLine.Option(names = {"--stop"}, description = "Stop the daemon running for this repo") boolean stop) {
+
+        if (stop) {
+            Integer exitCode = DaemonClient.forward(daemonServer.getDaemonFile(), new String[] {"daemon", "--stop"});
+            if (exitCode == null) {
+                System.err.println("No monobuild daemon is running for this repo");
+                return 1;
+            }
+            return exitCode;
+        }
+
+        if (DaemonClient.forward(daemonServer.getDaemonFile(), new String[] {"daemon"}) != null) {
+            return 1;
+        }
+
+        // Each request gets parsed into a fresh command, so no option carries over from one request to the next
+        prepare();
+        return daemonServer.serve(args -> new CommandLine(commands.get()).execute(args));
+
+    }
+
     @CommandLine.Command(name = "circleci-workflows", description = "Print a CircleCI config Workflows section for changed projects")
     public Integer circleciWorkflows(@CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "Display this help and exit") boolean help) {
 
@@ -65,6 +140,7 @@ public class MonobuildCommand implements Callable<Integer> {
             }
         }
 
+        prepare();
         return monobuild.circleciWorkflows(baseRef);
 
     }
@@ -81,7 +157,17 @@ public class MonobuildCommand implements Callable<Integer> {
                 baseRef = buildOptions.baseBranch;
             }
         }
-        return monobuild.deploy(parameters, baseRef);
+        prepare();
+        return monobuild.deploy(parameters, baseRef, validateJobs(), failurePolicy());
+    }
+
+    @CommandLine.Command(name = "watch", description = "Rebuild and retest the projects affected by each batch of saved files")
+    public Integer watch(@CommandLine.Parameters String[] parameters) {
+        if(parameters == null) {
+            parameters = new String[0];
+        }
+        prepare();
+        return monobuild.watch(parameters, validateJobs(), failurePolicy());
     }
 
     @CommandLine.Command(name = "version", description = "Show version & configuration")
@@ -89,6 +175,63 @@ public class MonobuildCommand implements Callable<Integer> {
         return monobuild.version();
     }
 
+    // Options on the root command that apply before any subcommand runs
+    private void prepare() {
+        if (rebuildIndex) {
+            monobuild.deleteProjectIndex();
+        }
+        // Always set, so a daemon doesn't carry one request's --spawn over to the next
+        monobuild.setSpawnBackend((spawn != null) ? validateSpawn() : null);
+    }
+
+    private FailurePolicy failurePolicy() {
+        return keepGoing ? FailurePolicy.KEEP_GOING : FailurePolicy.FAIL_FAST;
+    }
+
+    private String validateJobs() {
+        if (jobs == null || jobs.equalsIgnoreCase("auto")) {
+            return jobs;
+        }
+        try {
+            if (Integer.parseInt(jobs) > 0) {
+                return jobs;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new CommandLine.ParameterException(spec.commandLine(), "--jobs must be a positive number or 'auto': " + jobs);
+    }
+
+    private SpawnBackend validateSpawn() {
+        try {
+            return SpawnBackend.valueOf(spawn.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--spawn must be 'pty' or 'plain': " + spawn);
+        }
+    }
+
+    private ClosurePolicy validateClosure() {
+        if (closure == null) {
+            return ClosurePolicy.FULL;
+        }
+        try {
+            return ClosurePolicy.parse(closure);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--closure must be 'full', 'test-changed' or 'depth=N': " + closure);
+        }
+    }
+
+    private Shard validateShard() {
+        if (shard == null) {
+            return null;
+        }
+        try {
+            return Shard.parse(shard);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--shard must be i/n with 1 <= i <= n: " + shard);
+        }
+    }
+
     static class BuildOptions {
 
         @CommandLine.Option(names = {"-t", "--tag"}, description = "Base tag to compare against")
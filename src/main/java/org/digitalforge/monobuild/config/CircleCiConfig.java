@@ -21,6 +21,7 @@ public class CircleCiConfig {
     public static class JobConfig {
 
         private List<String> context;
+        private Long batchSeconds;
 
         public List<String> getContext() {
             return (context != null) ? context: List.of();
@@ -30,6 +31,17 @@ public class CircleCiConfig {
             this.context = context;
             return this;
         }
+
+        // Projects of this job type that took less than this many seconds to build and test on earlier runs are
+        // batched into shared jobs of up to this long; 0 gives every project a job of its own
+        public long getBatchSeconds() {
+            return (batchSeconds != null) ? batchSeconds : 0;
+        }
+
+        public JobConfig setBatchSeconds(Long batchSeconds) {
+            this.batchSeconds = batchSeconds;
+            return this;
+        }
     }
 
 }
@@ -0,0 +1,45 @@
+package org.digitalforge.monobuild.config;
+
+import java.util.List;
+
+public class MonobuildConfig {
+
+    private static final List<String> DEFAULT_IGNORED_DIRECTORIES = List.of(
+        ".git", ".gradle", ".idea", ".venv", "venv", "__pycache__", "node_modules", "build", "target", "dist"
+    );
+
+    private Boolean nestedProjects;
+    private List<String> ignoredDirectories;
+    private Long processTimeoutMinutes;
+
+    // Whether to keep looking for projects inside a directory that is already a project
+    public boolean getNestedProjects() {
+        return (nestedProjects != null) ? nestedProjects : false;
+    }
+
+    public MonobuildConfig setNestedProjects(Boolean nestedProjects) {
+        this.nestedProjects = nestedProjects;
+        return this;
+    }
+
+    // Directory names that project discovery never descends into
+    public List<String> getIgnoredDirectories() {
+        return (ignoredDirectories != null) ? ignoredDirectories : DEFAULT_IGNORED_DIRECTORIES;
+    }
+
+    public MonobuildConfig setIgnoredDirectories(List<String> ignoredDirectories) {
+        this.ignoredDirectories = ignoredDirectories;
+        return this;
+    }
+
+    // How long a project's script may run before it and everything it started are stopped; 0 means no limit
+    public long getProcessTimeoutMinutes() {
+        return (processTimeoutMinutes != null) ? processTimeoutMinutes : 0;
+    }
+
+    public MonobuildConfig setProcessTimeoutMinutes(Long processTimeoutMinutes) {
+        this.processTimeoutMinutes = processTimeoutMinutes;
+        return this;
+    }
+
+}
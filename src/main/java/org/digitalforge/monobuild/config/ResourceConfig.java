@@ -0,0 +1,103 @@
+package org.digitalforge.monobuild.config;
+
+import java.util.List;
+import java.util.Map;
+
+public class ResourceConfig {
+
+    private Budget budget;
+    private ProjectResources defaults;
+    private Map<String, ProjectResources> projects;
+
+    public Budget getBudget() {
+        return (budget != null) ? budget : new Budget();
+    }
+
+    public ResourceConfig setBudget(Budget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    public ProjectResources getDefaults() {
+        return (defaults != null) ? defaults : new ProjectResources();
+    }
+
+    public ResourceConfig setDefaults(ProjectResources defaults) {
+        this.defaults = defaults;
+        return this;
+    }
+
+    public Map<String, ProjectResources> getProjects() {
+        return (projects != null) ? projects : Map.of();
+    }
+
+    public ResourceConfig setProjects(Map<String, ProjectResources> projects) {
+        this.projects = projects;
+        return this;
+    }
+
+    // Anything left unset here is filled in at runtime: cpu from --jobs, memory from /proc/meminfo
+    public static class Budget {
+
+        private Double cpu;
+        private Long memory;
+
+        public Double getCpu() {
+            return cpu;
+        }
+
+        public Budget setCpu(Double cpu) {
+            this.cpu = cpu;
+            return this;
+        }
+
+        // In megabytes
+        public Long getMemory() {
+            return memory;
+        }
+
+        public Budget setMemory(Long memory) {
+            this.memory = memory;
+            return this;
+        }
+
+    }
+
+    public static class ProjectResources {
+
+        private Double cpu;
+        private Long memory;
+        private List<String> resources;
+
+        public Double getCpu() {
+            return cpu;
+        }
+
+        public ProjectResources setCpu(Double cpu) {
+            this.cpu = cpu;
+            return this;
+        }
+
+        // In megabytes
+        public Long getMemory() {
+            return memory;
+        }
+
+        public ProjectResources setMemory(Long memory) {
+            this.memory = memory;
+            return this;
+        }
+
+        // Named resources, like "docker" or "db-port-5432", that only one project can hold at a time
+        public List<String> getResources() {
+            return (resources != null) ? resources : List.of();
+        }
+
+        public ProjectResources setResources(List<String> resources) {
+            this.resources = resources;
+            return this;
+        }
+
+    }
+
+}
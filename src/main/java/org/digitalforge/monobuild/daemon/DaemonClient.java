@@ -0,0 +1,96 @@
+package org.digitalforge.monobuild.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.digitalforge.monobuild.helper.JsonHelper;
+
+// Hands a command to this repo's daemon and relays its output. Runs before Guice is set up, so it does as little as
+// it can; anything that goes wrong just means the command runs in this process instead.
+public final class DaemonClient {
+
+    // Read-only commands the daemon answers from its warm state; everything else always runs in the calling process
+    public static final Set<String> FORWARDED_COMMANDS = Set.of("graph", "affected");
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 500;
+
+    private DaemonClient() {
+    }
+
+    public static boolean isForwarded(String[] args) {
+        return args.length > 0 && FORWARDED_COMMANDS.contains(args[0]);
+    }
+
+    // The command's exit code, or null if there's no daemon to run it
+    public static Integer forward(Path daemonFile, String[] args) {
+
+        DaemonInfo info = readInfo(daemonFile);
+        if (info == null) {
+            return null;
+        }
+
+        try (Socket socket = connect(info)) {
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DaemonProtocol.writeRequest(out, info.getToken(), args);
+
+            // Nothing has been printed yet if the daemon hangs up before the first frame, so it's safe to fall back
+            boolean started = false;
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    started = true;
+                    if (type == DaemonProtocol.EXIT) {
+                        System.out.flush();
+                        return in.readInt();
+                    }
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    System.out.write(bytes);
+                }
+            } catch (EOFException e) {
+                if (!started) {
+                    return null;
+                }
+                System.out.flush();
+                System.err.println("Lost connection to the monobuild daemon");
+                return 1;
+            }
+
+        } catch (IOException e) {
+            return null;
+        }
+
+    }
+
+    public static DaemonInfo readInfo(Path daemonFile) {
+        try {
+            return Files.isReadable(daemonFile) ? JsonHelper.MAPPER.readValue(daemonFile.toFile(), DaemonInfo.class) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Socket connect(DaemonInfo info) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), info.getPort()), CONNECT_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.digitalforge.monobuild.daemon;
+
+// Where a running daemon listens, written to ~/.monobuild/daemon/<repo>.json for clients to find it
+public class DaemonInfo {
+
+    private Integer port;
+    private String token;
+    private Long pid;
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public DaemonInfo setPort(Integer port) {
+        this.port = port;
+        return this;
+    }
+
+    // Clients have to present this, so only someone who can read the daemon file can use the daemon
+    public String getToken() {
+        return token;
+    }
+
+    public DaemonInfo setToken(String token) {
+        this.token = token;
+        return this;
+    }
+
+    public Long getPid() {
+        return pid;
+    }
+
+    public DaemonInfo setPid(Long pid) {
+        this.pid = pid;
+        return this;
+    }
+
+}
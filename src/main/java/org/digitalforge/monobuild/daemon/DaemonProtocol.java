@@ -0,0 +1,82 @@
+package org.digitalforge.monobuild.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+// The client sends its token and arguments; the daemon answers with output frames followed by one exit frame.
+//
+//   request:  UTF token, int argc, UTF arg...
+//   response: ('O', int length, bytes)... then ('X', int exitCode)
+public final class DaemonProtocol {
+
+    public static final byte OUTPUT = 'O';
+    public static final byte EXIT = 'X';
+
+    private DaemonProtocol() {
+    }
+
+    public static Path daemonFile(Path homeDir, String repoKey) {
+        return homeDir.resolve("daemon").resolve(repoKey + ".json");
+    }
+
+    public static void writeRequest(DataOutputStream out, String token, String[] args) throws IOException {
+        out.writeUTF(token);
+        out.writeInt(args.length);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+    }
+
+    public static String[] readArgs(DataInputStream in) throws IOException {
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        return args;
+    }
+
+    public static void writeExit(DataOutputStream out, int exitCode) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(exitCode);
+            out.flush();
+        }
+    }
+
+    // Wraps everything written to it in output frames. Writes from several threads stay whole frames.
+    public static class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        public FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(OUTPUT);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+    }
+
+}
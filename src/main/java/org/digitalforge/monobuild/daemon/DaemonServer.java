@@ -0,0 +1,174 @@
+package org.digitalforge.monobuild.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.Function;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.digitalforge.monobuild.helper.HashHelper;
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+import org.digitalforge.sneakythrow.SneakyThrow;
+
+// Keeps one injector, and with it the project index, parsed graph and open git repository, alive between commands.
+// Only the read-only commands in DaemonClient.FORWARDED_COMMANDS are served. They run one at a time on the accepting
+// thread with System.out pointed at the client, which is where the console appender writes.
+@Singleton
+public class DaemonServer {
+
+    // A real client sends its whole request at once; anything slower mustn't hold up the accepting thread
+    private static final int REQUEST_TIMEOUT_MILLIS = 2000;
+
+    private final Path daemonFile;
+    private final Path repoDir;
+    private final Console console;
+
+    private volatile boolean running;
+
+    @Inject
+    public DaemonServer(@Named("homeDir") Path homeDir,
+                        @Named("repoKey") String repoKey,
+                        @Named("repoDir") Path repoDir,
+                        Console console) {
+        this.daemonFile = DaemonProtocol.daemonFile(homeDir, repoKey);
+        this.repoDir = repoDir;
+        this.console = console;
+    }
+
+    public Path getDaemonFile() {
+        return daemonFile;
+    }
+
+    public int serve(Function<String[], Integer> command) {
+
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String token = HashHelper.toHex(random);
+
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+            writeInfo(new DaemonInfo()
+                    .setPort(server.getLocalPort())
+                    .setToken(token)
+                    .setPid(ProcessHandle.current().pid()));
+            Runtime.getRuntime().addShutdownHook(new Thread(this::deleteInfo));
+
+            console.infoLeftRight("Daemon listening", "127.0.0.1:" + server.getLocalPort());
+            console.infoLeftRight("Repo directory", repoDir);
+
+            running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    handle(socket, token, command);
+                } catch (IOException e) {
+                    // The client went away; nothing to tell it
+                    console.warn("Daemon request failed: {}", e.getMessage());
+                }
+            }
+
+        } catch (IOException e) {
+            throw SneakyThrow.sneak(e);
+        } finally {
+            deleteInfo();
+        }
+
+        return 0;
+
+    }
+
+    private void handle(Socket socket, String token, Function<String[], Integer> command) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        String presented = in.readUTF();
+        if (!MessageDigest.isEqual(presented.getBytes(), token.getBytes())) {
+            return;
+        }
+        String[] args = DaemonProtocol.readArgs(in);
+        socket.setSoTimeout(0);
+
+        // "daemon stop" is for this daemon; any other daemon command would try to start a second one
+        if (args.length > 0 && args[0].equals("daemon")) {
+            boolean stop = Arrays.asList(args).contains("--stop");
+            if (stop) {
+                running = false;
+            } else {
+                new PrintStream(new DaemonProtocol.FrameOutputStream(out), true).println("A monobuild daemon is already running for " + repoDir);
+            }
+            DaemonProtocol.writeExit(out, stop ? 0 : 1);
+            return;
+        }
+
+        // Anything that builds, deploys or watches runs in the caller's process. Hanging up before the first frame
+        // tells the client to do just that.
+        if (!DaemonClient.isForwarded(args)) {
+            console.warn("Refused to serve: {}", String.join(" ", args));
+            return;
+        }
+
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        PrintStream client = new PrintStream(new DaemonProtocol.FrameOutputStream(out), true);
+
+        int exitCode;
+        long start = System.currentTimeMillis();
+        System.setOut(client);
+        System.setErr(client);
+        try {
+            exitCode = command.apply(args);
+        } catch (RuntimeException e) {
+            e.printStackTrace(client);
+            exitCode = 1;
+        } finally {
+            client.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+
+        DaemonProtocol.writeExit(out, exitCode);
+        console.infoLeftRight("Served (" + console.formatMillis(System.currentTimeMillis() - start) + ")", String.join(" ", args));
+
+    }
+
+    private void writeInfo(DaemonInfo info) throws IOException {
+
+        Files.createDirectories(daemonFile.getParent());
+        Path tmpFile = Files.createTempFile(daemonFile.getParent(), daemonFile.getFileName().toString(), ".tmp");
+        try {
+            // The token is the only thing keeping other local users out
+            Files.setPosixFilePermissions(tmpFile, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        JsonHelper.MAPPER.writeValue(tmpFile.toFile(), info);
+        Files.move(tmpFile, daemonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    private void deleteInfo() {
+        try {
+            Files.deleteIfExists(daemonFile);
+        } catch (IOException e) {
+            // Clients fall back to running locally when they can't connect anyway
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.digitalforge.monobuild.graph;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.inject.Singleton;
+
+import org.digitalforge.monobuild.Project;
+
+// The projects a set of changes reaches. Rather than walking the ancestors and descendants of each changed project
+// separately, which revisits shared parts of the graph once per changed project, it does one walk up and one walk down
+// from all of them at once, so every project and edge is visited at most once in each direction.
+@Singleton
+public class AffectedClosure {
+
+    // Every command lists and runs affected projects in this order
+    public static final Comparator<Project> ORDER = Comparator.<Project, String>comparing(p -> p.name).thenComparing(p -> p.path);
+
+    // The changed projects, everything they depend on and everything that depends on them
+    public List<Project> getAffected(Collection<Project> changed, ProjectGraph graph) {
+
+        BitSet sources = graph.toBitSet(changed);
+        BitSet affected = (BitSet) sources.clone();
+        affected.or(graph.getUpstream(sources));
+        affected.or(graph.getDownstream(sources));
+
+        return toList(changed, graph, affected);
+
+    }
+
+    // The changed projects and everything that depends on them
+    public List<Project> getDownstream(Collection<Project> changed, ProjectGraph graph) {
+
+        BitSet sources = graph.toBitSet(changed);
+        BitSet affected = (BitSet) sources.clone();
+        affected.or(graph.getDownstream(sources));
+
+        return toList(changed, graph, affected);
+
+    }
+
+    // The affected projects split into changed, upstream and downstream, with the policy deciding how far downstream
+    // reaches and which of them are tested. A project that is both upstream of one change and downstream of another
+    // counts as downstream.
+    public Closure getClosure(Collection<Project> changed, ProjectGraph graph, ClosurePolicy policy) {
+
+        BitSet sources = graph.toBitSet(changed);
+
+        BitSet downstream = (policy.getDepth() < 0) ? graph.getDownstream(sources) : graph.getDownstream(sources, policy.getDepth());
+        downstream.andNot(sources);
+
+        BitSet upstream = graph.getUpstream(sources);
+        upstream.andNot(sources);
+        upstream.andNot(downstream);
+
+        return new Closure(policy, toList(changed, graph, sources), sorted(graph.toList(upstream)), sorted(graph.toList(downstream)));
+
+    }
+
+    private static List<Project> sorted(List<Project> projects) {
+        projects.sort(ORDER);
+        return projects;
+    }
+
+    // Changed projects needn't be in the graph, but they're always affected
+    private List<Project> toList(Collection<Project> changed, ProjectGraph graph, BitSet affected) {
+
+        List<Project> list = graph.toList(affected);
+        for (Project project : changed) {
+            if (!graph.contains(project) && !list.contains(project)) {
+                list.add(project);
+            }
+        }
+        list.sort(ORDER);
+
+        return list;
+
+    }
+
+    public static class Closure {
+
+        public final ClosurePolicy policy;
+        public final List<Project> changed;
+        public final List<Project> upstream;
+        public final List<Project> downstream;
+
+        private Closure(ClosurePolicy policy, List<Project> changed, List<Project> upstream, List<Project> downstream) {
+            this.policy = policy;
+            this.changed = changed;
+            this.upstream = upstream;
+            this.downstream = downstream;
+        }
+
+        // Everything that has to be built
+        public List<Project> getBuilt() {
+            List<Project> built = new ArrayList<>(changed);
+            built.addAll(upstream);
+            built.addAll(downstream);
+            built.sort(ORDER);
+            return built;
+        }
+
+        // What the policy says to test, out of everything built
+        public Set<Project> getTested() {
+            Set<Project> tested = new HashSet<>(changed);
+            tested.addAll(downstream);
+            if (policy.isTestUpstream()) {
+                tested.addAll(upstream);
+            }
+            return tested;
+        }
+
+    }
+
+}
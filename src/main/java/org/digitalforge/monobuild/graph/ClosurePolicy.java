@@ -0,0 +1,63 @@
+package org.digitalforge.monobuild.graph;
+
+// Which of the projects around a change get built and which get tested. Changed projects are always built and
+// tested, and their upstream projects are always built so the changed code compiles.
+public class ClosurePolicy {
+
+    // Build and test the changed projects, everything upstream and everything downstream
+    public static final ClosurePolicy FULL = new ClosurePolicy("full", true, -1);
+
+    // Upstream projects didn't change, so only build them
+    public static final ClosurePolicy TEST_CHANGED = new ClosurePolicy("test-changed", false, -1);
+
+    private final String name;
+    private final boolean testUpstream;
+    private final int depth;
+
+    private ClosurePolicy(String name, boolean testUpstream, int depth) {
+        this.name = name;
+        this.testUpstream = testUpstream;
+        this.depth = depth;
+    }
+
+    // Like TEST_CHANGED, but only reaching this many levels of dependents downstream, for quick local loops
+    public static ClosurePolicy depth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth can't be negative: " + depth);
+        }
+        return new ClosurePolicy("depth=" + depth, false, depth);
+    }
+
+    // full, test-changed or depth=N
+    public static ClosurePolicy parse(String value) {
+        if (value.equals(FULL.name)) {
+            return FULL;
+        }
+        if (value.equals(TEST_CHANGED.name)) {
+            return TEST_CHANGED;
+        }
+        if (value.startsWith("depth=")) {
+            try {
+                return depth(Integer.parseInt(value.substring("depth=".length())));
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        throw new IllegalArgumentException("Unknown closure policy: " + value);
+    }
+
+    public boolean isTestUpstream() {
+        return testUpstream;
+    }
+
+    // How many levels of dependents to include, or -1 for all of them
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,280 @@
+package org.digitalforge.monobuild.graph;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.digitalforge.monobuild.Project;
+
+// An immutable dependency graph over projects numbered 0..n-1. Each direction of edge is stored as compressed sparse
+// rows: the neighbours of project i are targets[offsets[i]] up to targets[offsets[i + 1]], so the whole graph is a
+// handful of int arrays instead of a hash set per project, and traversals never hash a Project or its Path.
+public class ProjectGraph {
+
+    private final List<Project> projects;
+    private final Map<Project, Integer> ids;
+
+    private final int[] dependencyOffsets;
+    private final int[] dependencies;
+    private final int[] dependentOffsets;
+    private final int[] dependents;
+
+    // Dependencies before dependents; projects caught in a cycle come last, in id order
+    private final int[] order;
+    // Longest chain of dependencies below each project, so roots are level 0
+    private final int[] levels;
+    private final boolean acyclic;
+
+    private ProjectGraph(List<Project> projects, Map<Project, Integer> ids, List<int[]> edges) {
+
+        this.projects = projects;
+        this.ids = ids;
+
+        int n = projects.size();
+        dependencyOffsets = new int[n + 1];
+        dependentOffsets = new int[n + 1];
+        dependencies = new int[edges.size()];
+        dependents = new int[edges.size()];
+
+        // Count, prefix sum, then fill, for each direction
+        for (int[] edge : edges) {
+            dependencyOffsets[edge[1] + 1]++;
+            dependentOffsets[edge[0] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            dependencyOffsets[i + 1] += dependencyOffsets[i];
+            dependentOffsets[i + 1] += dependentOffsets[i];
+        }
+        int[] dependencyFill = Arrays.copyOf(dependencyOffsets, n);
+        int[] dependentFill = Arrays.copyOf(dependentOffsets, n);
+        for (int[] edge : edges) {
+            dependencies[dependencyFill[edge[1]]++] = edge[0];
+            dependents[dependentFill[edge[0]]++] = edge[1];
+        }
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(dependencies, dependencyOffsets[i], dependencyOffsets[i + 1]);
+            Arrays.sort(dependents, dependentOffsets[i], dependentOffsets[i + 1]);
+        }
+
+        // Kahn's algorithm, which gives the levels along the way
+        order = new int[n];
+        levels = new int[n];
+        int[] pending = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            pending[i] = dependencyOffsets[i + 1] - dependencyOffsets[i];
+            if (pending[i] == 0) {
+                order[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int node = order[head++];
+            for (int e = dependentOffsets[node]; e < dependentOffsets[node + 1]; e++) {
+                int dependent = dependents[e];
+                levels[dependent] = Math.max(levels[dependent], levels[node] + 1);
+                if (--pending[dependent] == 0) {
+                    order[tail++] = dependent;
+                }
+            }
+        }
+        acyclic = tail == n;
+        for (int i = 0; i < n && tail < n; i++) {
+            if (pending[i] > 0) {
+                order[tail++] = i;
+            }
+        }
+
+    }
+
+    public int size() {
+        return projects.size();
+    }
+
+    // In id order, which is the order they were added in
+    public List<Project> getProjects() {
+        return projects;
+    }
+
+    public Project getProject(int id) {
+        return projects.get(id);
+    }
+
+    // The project's id, or -1 if it isn't in the graph
+    public int getId(Project project) {
+        return ids.getOrDefault(project, -1);
+    }
+
+    public boolean contains(Project project) {
+        return ids.containsKey(project);
+    }
+
+    // What this project includes, in id order
+    public List<Project> getDependencies(Project project) {
+        int id = getId(project);
+        return id < 0 ? List.of() : view(dependencies, dependencyOffsets[id], dependencyOffsets[id + 1]);
+    }
+
+    // What includes this project, in id order
+    public List<Project> getDependents(Project project) {
+        int id = getId(project);
+        return id < 0 ? List.of() : view(dependents, dependentOffsets[id], dependentOffsets[id + 1]);
+    }
+
+    public int getLevel(Project project) {
+        return levels[getId(project)];
+    }
+
+    public List<Project> getTopologicalOrder() {
+        return view(order, 0, order.length);
+    }
+
+    public boolean isAcyclic() {
+        return acyclic;
+    }
+
+    public BitSet toBitSet(Collection<Project> members) {
+        BitSet bits = new BitSet(size());
+        for (Project project : members) {
+            int id = getId(project);
+            if (id >= 0) {
+                bits.set(id);
+            }
+        }
+        return bits;
+    }
+
+    // The projects in the set, in id order
+    public List<Project> toList(BitSet bits) {
+        List<Project> list = new ArrayList<>(bits.cardinality());
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            list.add(projects.get(id));
+        }
+        return list;
+    }
+
+    // Everything the sources depend on, directly or not, excluding the sources themselves unless they're reached
+    public BitSet getUpstream(BitSet sources) {
+        return reach(sources, dependencyOffsets, dependencies, Integer.MAX_VALUE);
+    }
+
+    // Everything that depends on the sources, directly or not, excluding the sources themselves unless they're reached
+    public BitSet getDownstream(BitSet sources) {
+        return reach(sources, dependentOffsets, dependents, Integer.MAX_VALUE);
+    }
+
+    // Only what's at most maxDepth edges downstream of a source
+    public BitSet getDownstream(BitSet sources, int maxDepth) {
+        return reach(sources, dependentOffsets, dependents, maxDepth);
+    }
+
+    // The graph restricted to the given projects, keeping their relative order and the edges between them
+    public ProjectGraph subgraph(Collection<Project> members) {
+
+        BitSet keep = toBitSet(members);
+        Builder builder = new Builder();
+        for (int id = keep.nextSetBit(0); id >= 0; id = keep.nextSetBit(id + 1)) {
+            builder.add(projects.get(id));
+        }
+        for (int id = keep.nextSetBit(0); id >= 0; id = keep.nextSetBit(id + 1)) {
+            for (int e = dependencyOffsets[id]; e < dependencyOffsets[id + 1]; e++) {
+                if (keep.get(dependencies[e])) {
+                    builder.addDependency(projects.get(id), projects.get(dependencies[e]));
+                }
+            }
+        }
+
+        return builder.build();
+
+    }
+
+    // Breadth first from every source at once, one level of depth at a time
+    private BitSet reach(BitSet sources, int[] offsets, int[] targets, int maxDepth) {
+
+        BitSet visited = new BitSet(size());
+        // Every project is queued once when first reached, plus once more if it was a source
+        int[] queue = new int[size() + sources.cardinality()];
+        int head = 0;
+        int tail = 0;
+
+        for (int id = sources.nextSetBit(0); id >= 0; id = sources.nextSetBit(id + 1)) {
+            queue[tail++] = id;
+        }
+
+        for (int depth = 0; depth < maxDepth && head < tail; depth++) {
+            int levelEnd = tail;
+            while (head < levelEnd) {
+                int node = queue[head++];
+                for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+                    int next = targets[e];
+                    if (!visited.get(next)) {
+                        visited.set(next);
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+
+        return visited;
+
+    }
+
+    private List<Project> view(int[] ids, int from, int to) {
+        return Collections.unmodifiableList(new AbstractList<>() {
+            @Override
+            public Project get(int index) {
+                return projects.get(ids[from + index]);
+            }
+            @Override
+            public int size() {
+                return to - from;
+            }
+        });
+    }
+
+    public static class Builder {
+
+        private final List<Project> projects = new ArrayList<>();
+        private final Map<Project, Integer> ids = new HashMap<>();
+        private final List<int[]> edges = new ArrayList<>();
+
+        // The project's id, numbering it if it's new
+        public int add(Project project) {
+            return ids.computeIfAbsent(project, p -> {
+                projects.add(p);
+                return projects.size() - 1;
+            });
+        }
+
+        // project includes dependency; either is added if it's new
+        public Builder addDependency(Project project, Project dependency) {
+            edges.add(new int[] { add(dependency), add(project) });
+            return this;
+        }
+
+        public ProjectGraph build() {
+
+            // Drop repeated edges, since the same include can appear more than once in a settings file
+            List<int[]> unique = new ArrayList<>(edges.size());
+            Set<Long> seen = new HashSet<>();
+            for (int[] edge : edges) {
+                if (seen.add(((long) edge[0] << 32) | edge[1])) {
+                    unique.add(edge);
+                }
+            }
+
+            return new ProjectGraph(Collections.unmodifiableList(new ArrayList<>(projects)), new HashMap<>(ids), unique);
+
+        }
+
+    }
+
+}
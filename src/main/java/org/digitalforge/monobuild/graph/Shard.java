@@ -0,0 +1,34 @@
+package org.digitalforge.monobuild.graph;
+
+// One of n CI nodes splitting a build between them, numbered from 1 as in --shard 2/4
+public class Shard {
+
+    public final int index;
+    public final int count;
+
+    public Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Shard must be i/n with 1 <= i <= n: " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public static Shard parse(String value) {
+        String[] parts = value.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Shard must be i/n, e.g. 1/4: " + value);
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard must be i/n, e.g. 1/4: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+
+}
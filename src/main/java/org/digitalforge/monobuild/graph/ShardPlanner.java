@@ -0,0 +1,72 @@
+package org.digitalforge.monobuild.graph;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+import org.digitalforge.monobuild.Project;
+
+// Splits the affected projects between CI nodes. Each project is tested on exactly one shard, chosen by longest
+// processing time first: heaviest projects first, each onto whichever shard has the least work so far, which keeps
+// the busiest shard within 4/3 of the best possible split. A shard also builds, without testing, whatever its projects
+// depend on, so it never needs another shard's output. Every node has to plan from the same durations, e.g. a
+// history restored from a shared CI cache, or the nodes won't agree on the split.
+public class ShardPlanner {
+
+    private final ProjectGraph graph;
+    private final ToLongFunction<Project> weight;
+
+    public ShardPlanner(ProjectGraph graph, ToLongFunction<Project> weight) {
+        this.graph = graph;
+        this.weight = weight;
+    }
+
+    // The projects each shard tests, indexed from 0
+    public List<List<Project>> assign(Collection<Project> projects, int count) {
+
+        List<Project> heaviestFirst = new ArrayList<>(projects);
+        heaviestFirst.sort(Comparator.<Project>comparingLong(weight).reversed().thenComparing(AffectedClosure.ORDER));
+
+        // Ties go to the lowest shard, so every node computes the same split
+        long[] loads = new long[count];
+        PriorityQueue<Integer> lightest = new PriorityQueue<>(Comparator.<Integer>comparingLong(i -> loads[i]).thenComparing(i -> i));
+        List<List<Project>> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lightest.add(i);
+            shards.add(new ArrayList<>());
+        }
+
+        for (Project project : heaviestFirst) {
+            int shard = lightest.poll();
+            shards.get(shard).add(project);
+            loads[shard] += weight.applyAsLong(project);
+            lightest.add(shard);
+        }
+
+        for (List<Project> shard : shards) {
+            shard.sort(AffectedClosure.ORDER);
+        }
+
+        return shards;
+
+    }
+
+    // What a shard has to build: its own projects and everything among the given projects that they depend on
+    public List<Project> getClosure(Collection<Project> tested, Collection<Project> projects) {
+
+        BitSet closure = graph.toBitSet(tested);
+        closure.or(graph.getUpstream(closure));
+        closure.and(graph.toBitSet(projects));
+
+        List<Project> list = graph.toList(closure);
+        list.sort(AffectedClosure.ORDER);
+
+        return list;
+
+    }
+
+}
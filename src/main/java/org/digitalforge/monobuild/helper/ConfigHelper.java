@@ -0,0 +1,38 @@
+package org.digitalforge.monobuild.helper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.inject.Singleton;
+
+import org.digitalforge.monobuild.config.MonobuildConfig;
+import org.digitalforge.sneakythrow.SneakyThrow;
+
+@Singleton
+public class ConfigHelper {
+
+    public MonobuildConfig readMonobuildConfig(Path repoDir) {
+        MonobuildConfig config = readConfigFile(repoDir, "monobuild.json", MonobuildConfig.class);
+        return (config != null) ? config : new MonobuildConfig();
+    }
+
+    // Read a json file from the repo's .monobuild directory, or null if there isn't one
+    public <T> T readConfigFile(Path repoDir, String filename, Class<T> type) {
+
+        try {
+
+            Path file = repoDir.resolve(".monobuild").resolve(filename);
+
+            if(!Files.isReadable(file)) {
+                return null;
+            }
+
+            return JsonHelper.MAPPER.readValue(file.toFile(), type);
+
+        } catch(IOException ex) {
+            throw SneakyThrow.sneak(ex);
+        }
+
+    }
+
+}
@@ -1,96 +1,145 @@
 package org.digitalforge.monobuild.helper;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import me.alexjs.dag.Dag;
-import me.alexjs.dag.HashDag;
-
 import org.digitalforge.monobuild.Project;
+import org.digitalforge.monobuild.config.MonobuildConfig;
+import org.digitalforge.monobuild.graph.ProjectGraph;
+import org.digitalforge.monobuild.index.ProjectIndex;
+import org.digitalforge.monobuild.index.ProjectIndexStore;
+import org.digitalforge.monobuild.index.ProjectTrie;
 import org.digitalforge.monobuild.logging.console.Console;
+import org.digitalforge.sneakythrow.SneakyThrow;
 
 @Singleton
 public class ProjectHelper {
 
+    // Files that make a directory a project
+    private static final Set<String> PROJECT_MARKERS = Set.of(
+        "settings.gradle", "settings.gradle.kts", "local_requirements.txt", "setup.cfg", "package.json"
+    );
+
+    // A whole line naming another build, optionally commented out with "//#"
+    private static final Pattern INCLUDE_REGEX = Pattern.compile(
+        "(?m)^(?://#)?(?:includeBuild|@monobuildInclude@)[ \\(*]*['\"](.*)['\"][ \\)]*.*$"
+    );
+
     private Console console;
+    private ConfigHelper configHelper;
+    private ProjectIndexStore projectIndexStore;
+
+    // The index behind the projects most recently listed, which getDependencyTree fills in with parsed edges
+    private ProjectIndex index;
 
     @Inject
-    public ProjectHelper(Console console) {
+    public ProjectHelper(Console console, ConfigHelper configHelper, ProjectIndexStore projectIndexStore) {
         this.console = console;
+        this.configHelper = configHelper;
+        this.projectIndexStore = projectIndexStore;
     }
 
     public List<Project> listAllProjects(Path repoDir) throws IOException {
 
-        List<String> lines = Files.readAllLines(repoDir.resolve(".monobuild/projects.txt"));
+        String projectsTxt = Files.readString(repoDir.resolve(".monobuild/projects.txt"));
+        Path configFile = repoDir.resolve(".monobuild/monobuild.json");
+        String key = HashHelper.sha256(List.of(projectsTxt, Files.exists(configFile) ? Files.readString(configFile) : ""));
+
+        // Reuse what we found last time unless something that could change the answer has changed. A long-lived
+        // process (the daemon) keeps it in memory rather than reading it back every time.
+        ProjectIndex saved = (index != null) ? index : projectIndexStore.load();
+        String staleReason = checkIndex(saved, key, repoDir);
+        if (staleReason == null) {
+            index = saved;
+            console.infoLeftRight("Project index", "hit (" + saved.getProjects().size() + " projects)");
+            return toProjects(saved, repoDir);
+        }
+
+        List<String> lines = new ArrayList<>(List.of(projectsTxt.split("\\R")));
         lines.removeIf(l -> l.startsWith("#") || l.isBlank());
 
-        FileSystem fs = FileSystems.getDefault();
-        List<PathMatcher> exclude = new ArrayList<>();
-        List<PathMatcher> matchers = new ArrayList<>();
+        List<String> include = new ArrayList<>();
+        List<String> exclude = new ArrayList<>();
         for (String line : lines) {
             if (line.startsWith("!")) {
-                exclude.add(fs.getPathMatcher("glob:" + repoDir.resolve(line.substring(1))));
+                exclude.add(line.substring(1));
             } else {
-                matchers.add(fs.getPathMatcher("glob:" + repoDir.resolve(line)));
-            }
-        }
-
-        // There's gotta be a better way to do this. This is kind of absurd
-        Set<Project> projects = new HashSet<>();
-        try (Stream<Path> walk = Files.walk(repoDir)) {
-            List<Project> found = walk
-                    .filter(path -> {
-                        for (PathMatcher matcher : matchers) {
-                            // If the path matches an included path, then we want to keep track of it
-                            if (matcher.matches(path)) {
-                                for (PathMatcher excludeMatcher : exclude) {
-                                    // If the path also matches an excluded path, then filter it out
-                                    if (excludeMatcher.matches(path)) {
-                                        return false;
-                                    }
-                                }
-                                // included && !excluded
-                                return true;
-                            }
-                        }
-                        return false;
-                    })
-                    .filter(d ->
-                            Files.exists(d.resolve("settings.gradle"))
-                            || Files.exists(d.resolve("settings.gradle.kts"))
-                            || Files.exists(d.resolve("local_requirements.txt"))
-                            || Files.exists(d.resolve("setup.cfg"))
-                            || Files.exists(d.resolve("package.json")))
-                    .map(repoDir::resolve)
-                    .map(Path::toAbsolutePath)
-                    .map(Path::normalize)
-                    .map(dir -> new Project(dir.getFileName().toString(), dir))
-                    .collect(Collectors.toList());
-
-            projects.addAll(found);
-        }
-
-        return projects.stream()
-                .sorted(Comparator.comparing(p -> p.name))
+                include.add(line);
+            }
+        }
+
+        MonobuildConfig config = configHelper.readMonobuildConfig(repoDir);
+        Discovery discovery = new Discovery(
+                toMatcher(repoDir, include),
+                toMatcher(repoDir, exclude),
+                Set.copyOf(config.getIgnoredDirectories()),
+                config.getNestedProjects(),
+                maxDepth(include));
+
+        // Walk the tree in parallel, skipping ignored and excluded directories instead of filtering them out afterwards
+        Path root = repoDir.toAbsolutePath().normalize();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new DiscoveryTask(discovery, root, 0));
+        } finally {
+            pool.shutdown();
+        }
+
+        Map<String, Long> directories = new TreeMap<>();
+        discovery.directories.forEach((dir, modified) -> directories.put(root.relativize(dir).toString(), modified));
+
+        List<ProjectIndex.Entry> entries = discovery.found.entrySet().stream()
+                .map(found -> new ProjectIndex.Entry()
+                        .setName(found.getKey().getFileName().toString())
+                        .setPath(root.relativize(found.getKey()).toString())
+                        .setMarkers(found.getValue().stream().sorted().collect(Collectors.toList())))
+                .sorted(Comparator.comparing(ProjectIndex.Entry::getPath))
                 .collect(Collectors.toList());
 
+        index = new ProjectIndex()
+                .setKey(key)
+                .setDirectories(directories)
+                .setProjects(entries);
+        projectIndexStore.save(index);
+
+        console.infoLeftRight("Project index", "miss (" + staleReason + ")");
+
+        return toProjects(index, repoDir);
+
+    }
+
+    public void deleteProjectIndex() {
+        index = null;
+        projectIndexStore.delete();
     }
 
     public List<Project> getChangedProjects(List<Project> projects, Collection<String> diffs, Path repoDir) {
@@ -99,94 +148,307 @@ public class ProjectHelper {
         for(Project p : projects) {
             console.infoLeftRight(p.name, p.path);
         }
-        Set<Project> changedProjects = new HashSet<>();
-        for(String changedFile : diffs) {
-            for (Project project : projects) {
-                // If this changed file is in this project, then this project has been changed
-                if (repoDir.resolve(changedFile).startsWith(project.path)) {
-                    changedProjects.add(project);
-                    break;
-                }
-            }
-        }
+        // A changed file belongs to the deepest project directory it's in
+        Set<Project> changedProjects = new ProjectTrie(projects, repoDir).findAll(diffs);
 
         return changedProjects.stream()
             .sorted(Comparator.comparing(p -> p.name))
             .collect(Collectors.toList());
     }
 
-    public Dag<Project> getDependencyTree(List<Project> projects, Path repoDir) throws IOException {
+    public ProjectGraph getDependencyTree(List<Project> projects, Path repoDir) throws IOException {
+
+        // One Project instance per directory: the discovered one, or a single stand-in for an include that wasn't discovered
+        Map<Path, Project> projectsByPath = new HashMap<>();
+        for (Project project : projects) {
+            projectsByPath.putIfAbsent(project.path, project);
+        }
+
+        Map<String, ProjectIndex.Entry> entries = new HashMap<>();
+        if (index != null) {
+            for (ProjectIndex.Entry entry : index.getProjects()) {
+                entries.put(entry.getPath(), entry);
+            }
+        }
+
+        // Reading and scanning the settings files is independent per project, so spread it across cores
+        List<Settings> settings = projects.parallelStream()
+                .map(project -> readSettings(project, entries.get(repoDir.relativize(project.path).toString()), repoDir))
+                .collect(Collectors.toList());
+
+        int settingsFiles = 0;
+        int parsed = 0;
+        int changed = 0;
 
-        Dag<Project> dag = new HashDag<>();
+        // Discovered projects are numbered first, in discovery order, so ids follow the project list
+        ProjectGraph.Builder graph = new ProjectGraph.Builder();
         for (Project project : projects) {
+            graph.add(project);
+        }
+
+        for (Settings s : settings) {
+
+            if (s.includes == null) {
+                continue;
+            }
 
-            dag.add(project);
+            settingsFiles++;
+            if (s.state != Settings.State.UNCHANGED) {
+                changed++;
+            }
+            if (s.state == Settings.State.PARSED) {
+                parsed++;
+            }
+
+            for (String include : s.includes) {
+                Path dir = repoDir.resolve(include).toAbsolutePath().normalize();
+                Project dependency = projectsByPath.computeIfAbsent(dir, d -> new Project(d.getFileName().toString(), d));
+                graph.addDependency(s.project, dependency);
+            }
 
-            Path settings = repoDir.resolve(project.path.resolve("settings.gradle"));
-            if (!Files.exists(settings)) {
-                settings = repoDir.resolve(project.path.resolve("settings.gradle.kts"));
-                if(!Files.exists(settings)) {
-                    continue;
+        }
+
+        if (changed > 0 && index != null) {
+            projectIndexStore.save(index);
+        }
+
+        console.infoLeftRight("Settings files parsed", parsed + " of " + settingsFiles);
+
+        return graph.build();
+
+    }
+
+    // The includes for one project, reusing the indexed ones when the settings file's stamp or content is unchanged
+    private Settings readSettings(Project project, ProjectIndex.Entry entry, Path repoDir) {
+
+        try {
+
+            Path settingsFile = repoDir.resolve(project.path.resolve("settings.gradle"));
+            if (!Files.exists(settingsFile)) {
+                settingsFile = repoDir.resolve(project.path.resolve("settings.gradle.kts"));
+                if (!Files.exists(settingsFile)) {
+                    return new Settings(project, null, Settings.State.UNCHANGED);
                 }
             }
 
-            List<String> lines = Files.readAllLines(settings);
+            String fileName = settingsFile.getFileName().toString();
+            BasicFileAttributes attributes = Files.readAttributes(settingsFile, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+            boolean indexed = entry != null && entry.getIncludes() != null && Objects.equals(entry.getSettingsFile(), fileName);
+            if (indexed
+                    && Objects.equals(entry.getSettingsModified(), modified)
+                    && Objects.equals(entry.getSettingsSize(), attributes.size())) {
+                return new Settings(project, entry.getIncludes(), Settings.State.UNCHANGED);
+            }
+
+            byte[] content = Files.readAllBytes(settingsFile);
+            String hash = HashHelper.sha256(content);
+
+            Settings result;
+            if (indexed && Objects.equals(entry.getSettingsHash(), hash)) {
+                // Touched, e.g. by a checkout, but the same content
+                result = new Settings(project, entry.getIncludes(), Settings.State.RESTAMPED);
+            } else {
+                result = new Settings(project, parseIncludes(new String(content, StandardCharsets.UTF_8), project, repoDir), Settings.State.PARSED);
+            }
 
-            // Each "includeBuild" line represents an edge in the DAG
-            try (Stream<String> s = lines.stream()) {
-                s.map(IncludeBuildMatcher.INSTANCE)
-                        .filter(Matcher::matches)
-                        .map(matcher -> matcher.group(1))
-                        .map(project.path::resolve)
-                        .map(repoDir::resolve)
-                        .map(Path::toAbsolutePath)
-                        .map(Path::normalize)
-                        .sorted()
-                        .map(dir -> new Project(dir.getFileName().toString(), dir))
-                        .forEach(p -> dag.put(p, project));
+            if (entry != null) {
+                entry.setSettingsFile(fileName)
+                        .setSettingsModified(modified)
+                        .setSettingsSize(attributes.size())
+                        .setSettingsHash(hash)
+                        .setIncludes(result.includes);
             }
 
-            try(Stream<String> s = lines.stream()) {
-                s.map(MonobuildIncludeMatcher.INSTANCE)
-                    .filter(Matcher::matches)
-                    .map(matcher -> matcher.group(1))
-                    .map(project.path::resolve)
-                    .map(repoDir::resolve)
-                    .map(Path::toAbsolutePath)
-                    .map(Path::normalize)
-                    .sorted()
-                    .map(dir -> new Project(dir.getFileName().toString(), dir))
-                    .forEach(p -> dag.put(p, project));
+            return result;
+
+        } catch (IOException e) {
+            throw SneakyThrow.sneak(e);
+        }
+
+    }
+
+    // Each "includeBuild" or "@monobuildInclude@" line represents an edge in the DAG, found in one pass over the file
+    private List<String> parseIncludes(String content, Project project, Path repoDir) {
+
+        if (!content.contains("includeBuild") && !content.contains("@monobuildInclude@")) {
+            return List.of();
+        }
+
+        Set<Path> dirs = new TreeSet<>();
+        Matcher matcher = INCLUDE_REGEX.matcher(content);
+        while (matcher.find()) {
+            dirs.add(repoDir.resolve(project.path.resolve(matcher.group(1))).toAbsolutePath().normalize());
+        }
+
+        return dirs.stream()
+                .map(dir -> repoDir.relativize(dir).toString())
+                .collect(Collectors.toList());
+
+    }
+
+    // Why the saved index can't be used, or null if it can
+    private String checkIndex(ProjectIndex saved, String key, Path repoDir) {
+
+        if (saved == null) {
+            return "no saved index";
+        }
+        if (!Objects.equals(saved.getKey(), key)) {
+            return "projects.txt or monobuild.json changed";
+        }
+
+        for (Map.Entry<String, Long> directory : saved.getDirectories().entrySet()) {
+            try {
+                long modified = Files.getLastModifiedTime(repoDir.resolve(directory.getKey()), LinkOption.NOFOLLOW_LINKS).to(TimeUnit.NANOSECONDS);
+                if (modified != directory.getValue()) {
+                    return directory.getKey() + " changed";
+                }
+            } catch (IOException e) {
+                return directory.getKey() + " is gone";
             }
+        }
+
+        return null;
+
+    }
+
+    private List<Project> toProjects(ProjectIndex index, Path repoDir) {
+        return index.getProjects().stream()
+                .map(entry -> new Project(entry.getName(), repoDir.resolve(entry.getPath()).toAbsolutePath().normalize(), Set.copyOf(entry.getMarkers())))
+                .sorted(Comparator.<Project, String>comparing(p -> p.name).thenComparing(p -> p.path))
+                .collect(Collectors.toList());
+    }
+
+    // Fold all of the globs into one matcher, e.g. glob:{/repo/a/*,/repo/b/*}, unless a glob already uses braces or
+    // commas, which can't be nested
+    private static PathMatcher toMatcher(Path repoDir, List<String> globs) {
 
+        FileSystem fs = FileSystems.getDefault();
+        List<String> patterns = globs.stream()
+                .map(glob -> repoDir.resolve(glob).toString())
+                .collect(Collectors.toList());
+
+        if (patterns.isEmpty()) {
+            return path -> false;
+        }
+
+        if (patterns.stream().noneMatch(p -> p.contains("{") || p.contains("}") || p.contains(","))) {
+            return fs.getPathMatcher("glob:{" + String.join(",", patterns) + "}");
+        }
+
+        List<PathMatcher> matchers = patterns.stream()
+                .map(p -> fs.getPathMatcher("glob:" + p))
+                .collect(Collectors.toList());
+        return path -> matchers.stream().anyMatch(m -> m.matches(path));
+
+    }
+
+    // How deep below the repo root a project can possibly be, or unlimited if any glob can cross directories
+    private static int maxDepth(List<String> globs) {
+        int depth = 0;
+        for (String glob : globs) {
+            if (glob.contains("**")) {
+                return Integer.MAX_VALUE;
+            }
+            depth = Math.max(depth, (int) Arrays.stream(glob.split("/")).filter(s -> !s.isEmpty() && !s.equals(".")).count());
         }
+        return depth;
+    }
 
-        return dag;
+    private static class Discovery {
+
+        private final PathMatcher include;
+        private final PathMatcher exclude;
+        private final Set<String> ignored;
+        private final boolean nested;
+        private final int maxDepth;
+        private final Map<Path, Set<String>> found = new ConcurrentHashMap<>();
+        private final Map<Path, Long> directories = new ConcurrentHashMap<>();
+
+        private Discovery(PathMatcher include, PathMatcher exclude, Set<String> ignored, boolean nested, int maxDepth) {
+            this.include = include;
+            this.exclude = exclude;
+            this.ignored = ignored;
+            this.nested = nested;
+            this.maxDepth = maxDepth;
+        }
 
     }
 
-    private static class IncludeBuildMatcher implements Function<String, Matcher> {
+    private static class DiscoveryTask extends RecursiveAction {
 
-        public static final IncludeBuildMatcher INSTANCE = new IncludeBuildMatcher();
+        private static final long serialVersionUID = 1L;
 
-        private static final Pattern REGEX = Pattern.compile("(?://#)?includeBuild[ \\(*]*['\"](.*)['\"][ \\)]*.*");
+        private final Discovery discovery;
+        private final Path dir;
+        private final int depth;
+
+        private DiscoveryTask(Discovery discovery, Path dir, int depth) {
+            this.discovery = discovery;
+            this.dir = dir;
+            this.depth = depth;
+        }
 
         @Override
-        public Matcher apply(String s) {
-            return REGEX.matcher(s);
+        protected void compute() {
+
+            // One directory listing answers both "is this a project?" and "where do we go next?"
+            Set<String> markers = new HashSet<>();
+            List<Path> subdirs = new ArrayList<>();
+            try {
+                // Read the modification time before listing, so a change made mid-listing still invalidates the index
+                discovery.directories.put(dir, Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).to(TimeUnit.NANOSECONDS));
+            } catch (IOException e) {
+                throw SneakyThrow.sneak(e);
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (PROJECT_MARKERS.contains(name)) {
+                        markers.add(name);
+                    } else if (depth < discovery.maxDepth
+                            && !discovery.ignored.contains(name)
+                            && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        subdirs.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                throw SneakyThrow.sneak(e);
+            }
+
+            boolean project = !markers.isEmpty() && discovery.include.matches(dir);
+            if (project) {
+                discovery.found.put(dir, markers);
+                if (!discovery.nested) {
+                    return;
+                }
+            }
+
+            List<DiscoveryTask> tasks = new ArrayList<>(subdirs.size());
+            for (Path subdir : subdirs) {
+                if (!discovery.exclude.matches(subdir)) {
+                    tasks.add(new DiscoveryTask(discovery, subdir, depth + 1));
+                }
+            }
+            invokeAll(tasks);
+
         }
 
     }
 
-    private static class MonobuildIncludeMatcher implements Function<String, Matcher> {
+    private static class Settings {
 
-        public static final MonobuildIncludeMatcher INSTANCE = new MonobuildIncludeMatcher();
+        private enum State { UNCHANGED, RESTAMPED, PARSED }
 
-        private static final Pattern REGEX = Pattern.compile("(//#)?@monobuildInclude@[ \\(*]*['\"](.*)['\"][ \\)]*.*");
+        private final Project project;
+        private final List<String> includes;
+        private final State state;
 
-        @Override
-        public Matcher apply(String s) {
-            return REGEX.matcher(s);
+        private Settings(Project project, List<String> includes, State state) {
+            this.project = project;
+            this.includes = includes;
+            this.state = state;
         }
 
     }
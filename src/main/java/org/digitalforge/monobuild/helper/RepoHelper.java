@@ -1,31 +1,38 @@
 package org.digitalforge.monobuild.helper;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.lib.RepositoryCache;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 import org.digitalforge.monobuild.logging.console.Console;
 import org.digitalforge.sneakythrow.SneakyThrow;
@@ -34,20 +41,34 @@ import org.digitalforge.sneakythrow.SneakyThrow;
 public class RepoHelper {
 
     private final Console console;
+    private final Boolean detectRenames;
+
+    // Opening a repository reads its config, refs and packs, so each one is opened once and reused
+    private final Map<File, Repository> repositories = new ConcurrentHashMap<>();
 
     @Inject
-    public RepoHelper(Console console) {
+    public RepoHelper(Console console, @Named("detectRenames") Boolean detectRenames) {
         this.console = console;
+        this.detectRenames = detectRenames;
+    }
+
+    public Repository getRepository(File repoDir) {
+        File gitDir = RepositoryCache.FileKey.lenient(repoDir, FS.DETECTED).getFile();
+        return repositories.computeIfAbsent(gitDir, dir -> {
+            try {
+                return new RepositoryBuilder().setGitDir(dir).setMustExist(true).build();
+            } catch (IOException e) {
+                throw SneakyThrow.sneak(e);
+            }
+        });
     }
 
     public String getFileContents(File gitDir, String gitRef, String filePath) throws IOException {
 
-        File file = RepositoryCache.FileKey.lenient(gitDir, FS.DETECTED).getFile();
-        try (Repository repo = new RepositoryBuilder().setGitDir(file).build();
-             Git git = new Git(repo);
-             RevWalk walk = new RevWalk(repo);
+        Repository repo = getRepository(gitDir);
+        try (RevWalk walk = new RevWalk(repo);
              ObjectReader reader = repo.newObjectReader();
-             TreeWalk treeWalk = TreeWalk.forPath(git.getRepository(), filePath,
+             TreeWalk treeWalk = TreeWalk.forPath(repo, filePath,
                      walk.parseCommit(repo.resolve(gitRef)).getTree())) {
             return new String(reader.open(treeWalk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
         } catch (NullPointerException exception) {
@@ -56,33 +77,68 @@ public class RepoHelper {
 
     }
 
-    public String getMainBranchName(Path repoDir) {
+    // Map each directory (relative to the repo root) to its tree id at the given ref; missing directories are left out
+    public Map<String, String> getTreeIds(Path repoDir, String gitRef, Collection<String> paths) throws IOException {
+
+        Repository repo = getRepository(repoDir.toFile());
+        Map<String, String> treeIds = new HashMap<>();
+
+        try (RevWalk walk = new RevWalk(repo)) {
+
+            RevTree tree = walk.parseCommit(repo.resolve(gitRef)).getTree();
+
+            for (String path : paths) {
+                if (path.isEmpty()) {
+                    treeIds.put(path, tree.name());
+                    continue;
+                }
+                try (TreeWalk treeWalk = TreeWalk.forPath(repo, path, tree)) {
+                    if (treeWalk != null) {
+                        treeIds.put(path, treeWalk.getObjectId(0).name());
+                    }
+                }
+            }
+
+        }
+
+        return treeIds;
+
+    }
+
+    // Every file that differs from HEAD in the index or working tree, plus untracked files that aren't ignored
+    public Set<String> getUncommittedPaths(Path repoDir) {
 
         try {
+            IndexDiff indexDiff = indexDiff(getRepository(repoDir.toFile()));
+            Set<String> paths = new TreeSet<>();
+            paths.addAll(stagedChanges(indexDiff));
+            paths.addAll(workingChanges(indexDiff));
+            paths.addAll(indexDiff.getUntracked());
+            return paths;
+        } catch (IOException ex) {
+            throw SneakyThrow.sneak(ex);
+        }
 
-            Process p = new ProcessBuilder()
-                .command("git", "branch", "-r")
-                .directory(repoDir.toFile())
-                .start();
+    }
 
-            try(BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                String branch = br.lines()
-                    .map(line -> line.trim())
-                    .filter(line -> line.matches(".*/HEAD\\s+->.*"))
-                    .map(line -> line.substring(line.lastIndexOf('>') + 1).trim())
-                    .map(line -> line.substring(line.lastIndexOf('/') + 1))
-                    .findFirst()
-                    .orElse(null);
+    // The branch a remote's HEAD points at, e.g. "main" for refs/remotes/origin/HEAD -> refs/remotes/origin/main
+    public String getMainBranchName(Path repoDir) {
 
-                return branch;
+        try {
 
-            }
+            List<Ref> remotes = getRepository(repoDir.toFile()).getRefDatabase().getRefsByPrefix(Constants.R_REMOTES);
+
+            return remotes.stream()
+                .filter(ref -> ref.isSymbolic() && ref.getName().endsWith("/" + Constants.HEAD))
+                .map(ref -> ref.getTarget().getName())
+                .map(name -> name.substring(name.lastIndexOf('/') + 1))
+                .findFirst()
+                .orElse(null);
 
         } catch(IOException ex) {
             throw SneakyThrow.sneak(ex);
         }
 
-
     }
 
     public Collection<String> diff(File repoDir, String oldRef, String newRef, String mainBranchName) {
@@ -93,86 +149,127 @@ public class RepoHelper {
         //major delays in the build times.  This also happens locally to developers who fetch master all the time and it
         //starts building other projects really really confusing people since they had not changed those files.
 
-        List<String> coll = runCommand(repoDir, "git", "rev-parse", "--abbrev-ref", "HEAD");
-        console.infoLeftRight("Current branch", coll);//use whole list in case empty or more than 1
-        String currentBranc = coll.get(0); //let it just fail with exception if not there
-        //PLEASE READ post https://stackoverflow.com/questions/17493925/how-to-view-changed-files-on-git-branch-and-difference
-        //In case we merged changes to main branch, we should know difference between last and current commit
-        List<String> hashForkPointOfBranch;
-        if (currentBranc.equals(mainBranchName)) {
-            hashForkPointOfBranch = runCommand(repoDir, "git", "merge-base", currentBranc, "HEAD^1");
-        } else {
-            hashForkPointOfBranch = runCommand(repoDir, "git", "merge-base", currentBranc, mainBranchName);
-        }
-        console.infoLeftRight("Branched from Hash", hashForkPointOfBranch);//again, use whole list in case empty or more than 1
-        String hash = hashForkPointOfBranch.get(0); //let it just fail with exception and we can debug
+        Repository repo = getRepository(repoDir);
 
-        List<String> filesCommitted = runCommand(repoDir, "git", "diff", "--name-only", hash, currentBranc);
-        console.header("Files changed/comitted in branch");
-        for(String s : filesCommitted) {
-            console.info(s);
-        }
+        try (RevWalk walk = new RevWalk(repo)) {
 
-        Collection<String> stagedChanges = runCommand(repoDir, "git", "diff", "--name-status", "--cached")
-                .stream()
-                .flatMap(new DiffSplitter())
-                .collect(Collectors.toList());
-        Collection<String> workingChanges = runCommand(repoDir, "git", "diff", "--name-status")
-                .stream()
-                .flatMap(new DiffSplitter())
-                .collect(Collectors.toList());
-
-        allChangedFiles.addAll(workingChanges);
-        allChangedFiles.addAll(stagedChanges);
-
-        console.header("Files changed & not yet committed");
-        for(String s : allChangedFiles) {
-            console.info(s);
-        }
+            String currentBranc = repo.getBranch();
+            console.infoLeftRight("Current branch", currentBranc);
+            //PLEASE READ post https://stackoverflow.com/questions/17493925/how-to-view-changed-files-on-git-branch-and-difference
+            //In case we merged changes to main branch, we should know difference between last and current commit
+            RevCommit current = walk.parseCommit(resolve(repo, currentBranc));
+            RevCommit base;
+            if (currentBranc.equals(mainBranchName)) {
+                base = walk.parseCommit(resolve(repo, Constants.HEAD + "^1"));
+            } else {
+                base = walk.parseCommit(resolve(repo, mainBranchName));
+            }
 
-        allChangedFiles.addAll(filesCommitted);
+            RevCommit forkPoint = mergeBase(walk, current, base);
+            console.infoLeftRight("Branched from Hash", forkPoint.name());
+
+            Collection<String> filesCommitted = committedChanges(repo, forkPoint.getTree(), current.getTree());
+            console.header("Files changed/comitted in branch");
+            for(String s : filesCommitted) {
+                console.info(s);
+            }
+
+            IndexDiff indexDiff = indexDiff(repo);
+            allChangedFiles.addAll(workingChanges(indexDiff));
+            allChangedFiles.addAll(stagedChanges(indexDiff));
+
+            console.header("Files changed & not yet committed");
+            for(String s : allChangedFiles) {
+                console.info(s);
+            }
+
+            allChangedFiles.addAll(filesCommitted);
+
+        } catch (IOException ex) {
+            throw SneakyThrow.sneak(ex);
+        }
 
         return allChangedFiles;
     }
 
-    private List<String> runCommand(File directory, String... command) {
+    private ObjectId resolve(Repository repo, String revision) throws IOException {
 
-        try {
+        ObjectId id = repo.resolve(revision);
 
-            Process p = new ProcessBuilder()
-                .command(command)
-                .directory(directory)
-                .start();
+        // CI checkouts often only have the remote tracking branch
+        if (id == null) {
+            id = repo.resolve(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + revision);
+        }
+        if (id == null) {
+            throw new IOException("Cannot resolve git revision: " + revision);
+        }
 
-            List<String> lines = new LinkedList<>();
+        return id;
 
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                String line;
-                while((line = br.readLine()) != null) {
-                    lines.add(line);
-                }
+    }
+
+    private RevCommit mergeBase(RevWalk walk, RevCommit a, RevCommit b) throws IOException {
+
+        // A merge base walk can't be reused for anything else, so give it a walk of its own
+        try (RevWalk mergeBaseWalk = new RevWalk(walk.getObjectReader())) {
+
+            mergeBaseWalk.setRevFilter(RevFilter.MERGE_BASE);
+            mergeBaseWalk.markStart(mergeBaseWalk.parseCommit(a));
+            mergeBaseWalk.markStart(mergeBaseWalk.parseCommit(b));
+
+            RevCommit mergeBase = mergeBaseWalk.next();
+            if (mergeBase == null) {
+                throw new IOException("No merge base between " + a.name() + " and " + b.name());
             }
 
-            return lines;
+            return walk.parseCommit(mergeBase);
 
-        } catch(Exception ex) {
-            throw SneakyThrow.sneak(ex);
         }
 
     }
 
-    private class DiffSplitter implements Function<String, Stream<String>> {
+    // Both sides of every change, so a rename counts against the project it left as well as the one it entered
+    private Collection<String> committedChanges(Repository repo, RevTree oldTree, RevTree newTree) throws IOException {
 
-        @Override
-        public Stream<String> apply(String s) {
-            String[] split = s.split("\t");
-            if(split.length == 2) {
-                return Stream.of(split[1]);
-            } else {
-                return Stream.of(split[1], split[2]);
+        Set<String> paths = new TreeSet<>();
+
+        try (DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+            formatter.setRepository(repo);
+            formatter.setDetectRenames(detectRenames);
+            for (DiffEntry entry : formatter.scan(oldTree, newTree)) {
+                if (!entry.getOldPath().equals(DiffEntry.DEV_NULL)) {
+                    paths.add(entry.getOldPath());
+                }
+                if (!entry.getNewPath().equals(DiffEntry.DEV_NULL)) {
+                    paths.add(entry.getNewPath());
+                }
             }
         }
 
+        return paths;
+
+    }
+
+    private IndexDiff indexDiff(Repository repo) throws IOException {
+        IndexDiff indexDiff = new IndexDiff(repo, Constants.HEAD, new FileTreeIterator(repo));
+        indexDiff.diff();
+        return indexDiff;
+    }
+
+    // What `git diff --cached` reports: the index compared to HEAD
+    private Set<String> stagedChanges(IndexDiff indexDiff) {
+        Set<String> paths = new TreeSet<>(indexDiff.getAdded());
+        paths.addAll(indexDiff.getChanged());
+        paths.addAll(indexDiff.getRemoved());
+        return paths;
+    }
+
+    // What `git diff` reports: the working tree compared to the index, ignoring untracked files
+    private Set<String> workingChanges(IndexDiff indexDiff) {
+        Set<String> paths = new TreeSet<>(indexDiff.getModified());
+        paths.addAll(indexDiff.getMissing());
+        paths.addAll(indexDiff.getConflicting());
+        return paths;
     }
 
 }
@@ -1,13 +1,21 @@
 package org.digitalforge.monobuild.helper;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.eclipse.jgit.util.io.TeeOutputStream;
@@ -17,18 +25,54 @@ import org.digitalforge.sneakythrow.SneakyThrow;
 @Singleton
 public class StreamHelper {
 
-    public CompletableFuture<String> forkToFileAndString(InputStream stream, Path path) {
+    private final ExecutorService supervisorExecutor;
+
+    @Inject
+    public StreamHelper(@Named("supervisorExecutor") ExecutorService supervisorExecutor) {
+        this.supervisorExecutor = supervisorExecutor;
+    }
+
+    // Stream everything to the file, keeping only the last maxBytes in memory for when the output needs to be shown
+    public CompletableFuture<TailOutputStream> forkToFileWithTail(InputStream stream, Path path, int maxBytes) {
 
         return CompletableFuture.supplyAsync(() -> {
-            try (OutputStream file = Files.newOutputStream(path, StandardOpenOption.CREATE)) {
-                ByteArrayOutputStream output = new ByteArrayOutputStream();
-                TeeOutputStream tee = new TeeOutputStream(file, output);
-                stream.transferTo(tee);
-                return output.toString();
+            try (OutputStream file = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                TailOutputStream tail = new TailOutputStream(maxBytes);
+                stream.transferTo(new TeeOutputStream(file, tail));
+                return tail;
+            } catch (IOException e) {
+                throw SneakyThrow.sneak(e);
+            }
+        }, supervisorExecutor);
+
+    }
+
+    // Hand each line of the stream to the consumer as it arrives
+    public CompletableFuture<Void> forkLines(InputStream stream, Consumer<String> consumer) {
+
+        return CompletableFuture.runAsync(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                reader.lines().forEach(consumer);
             } catch (IOException e) {
                 throw SneakyThrow.sneak(e);
             }
-        });
+        }, supervisorExecutor);
+
+    }
+
+    // The end of a file that a process wrote to directly, as forkToFileWithTail would have kept it
+    public TailOutputStream readTail(Path path, int maxBytes) throws IOException {
+
+        TailOutputStream tail = new TailOutputStream(maxBytes);
+
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+            long skipped = Math.max(0, channel.size() - maxBytes);
+            channel.position(skipped);
+            tail.skip(skipped);
+            Channels.newInputStream(channel).transferTo(tail);
+        }
+
+        return tail;
 
     }
 
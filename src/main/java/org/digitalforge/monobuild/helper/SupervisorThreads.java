@@ -0,0 +1,24 @@
+package org.digitalforge.monobuild.helper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads that sit on child processes: pumping their output and waiting for them to exit. These block for as long as
+// the process runs, so they get an executor of their own instead of starving the common pool.
+// src/main/java21 replaces this with virtual threads when running on Java 21 or later.
+public final class SupervisorThreads {
+
+    private SupervisorThreads() {
+    }
+
+    public static ExecutorService newExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "monobuild-supervisor-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.digitalforge.monobuild.helper;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.inject.Singleton;
+
+@Singleton
+public class SystemHelper {
+
+    private static final Path LOADAVG = Path.of("/proc/loadavg");
+    private static final Path MEMINFO = Path.of("/proc/meminfo");
+
+    // cgroup v2 exposes "<quota> <period>" (or "max <period>"), v1 splits them across two files
+    private static final Path CGROUP_CPU_MAX = Path.of("/sys/fs/cgroup/cpu.max");
+    private static final Path CGROUP_V1_QUOTA = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+    private static final Path CGROUP_V1_PERIOD = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+
+    // The number of CPUs this process can actually use: the visible processors, capped by any container CPU quota
+    public int getAvailableCpus() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        double quota = getCpuQuota();
+        if (quota > 0) {
+            processors = Math.min(processors, (int) Math.max(1, Math.ceil(quota)));
+        }
+        return processors;
+    }
+
+    // The container CPU quota in CPUs, or -1 if there isn't one
+    public double getCpuQuota() {
+
+        try {
+
+            if (Files.isReadable(CGROUP_CPU_MAX)) {
+                String[] parts = Files.readString(CGROUP_CPU_MAX).trim().split("\\s+");
+                if (parts.length == 2 && !parts[0].equals("max")) {
+                    return Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]);
+                }
+                return -1;
+            }
+
+            if (Files.isReadable(CGROUP_V1_QUOTA) && Files.isReadable(CGROUP_V1_PERIOD)) {
+                long quota = Long.parseLong(Files.readString(CGROUP_V1_QUOTA).trim());
+                long period = Long.parseLong(Files.readString(CGROUP_V1_PERIOD).trim());
+                if (quota > 0 && period > 0) {
+                    return (double) quota / period;
+                }
+            }
+
+        } catch (IOException | NumberFormatException e) {
+            // No usable quota
+        }
+
+        return -1;
+
+    }
+
+    // The one minute load average, or -1 if it can't be read
+    public double getLoadAverage() {
+
+        try {
+            if (Files.isReadable(LOADAVG)) {
+                return Double.parseDouble(Files.readString(LOADAVG).trim().split("\\s+")[0]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Fall through to the platform MXBean
+        }
+
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+
+    }
+
+    // Memory available for new processes in megabytes (MemAvailable, or MemTotal on old kernels), or -1 if unknown
+    public long getAvailableMemory() {
+
+        try {
+            if (Files.isReadable(MEMINFO)) {
+                long total = -1;
+                for (String line : Files.readAllLines(MEMINFO)) {
+                    String[] parts = line.split("\\s+");
+                    if (parts[0].equals("MemAvailable:")) {
+                        return Long.parseLong(parts[1]) / 1024;
+                    }
+                    if (parts[0].equals("MemTotal:")) {
+                        total = Long.parseLong(parts[1]) / 1024;
+                    }
+                }
+                return total;
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Unknown
+        }
+
+        return -1;
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.digitalforge.monobuild.helper;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Keeps only the last bytes written to it in a fixed-size ring, so a process's output can be shown on failure without
+// holding all of it in memory
+public class TailOutputStream extends OutputStream {
+
+    private final byte[] ring;
+    private long written;
+
+    public TailOutputStream(int maxBytes) {
+        this.ring = new byte[maxBytes];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ring[(int) (written++ % ring.length)] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+
+        // Only the end of a write bigger than the ring can survive it
+        if (len > ring.length) {
+            off += len - ring.length;
+            written += len - ring.length;
+            len = ring.length;
+        }
+
+        int pos = (int) (written % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(b, off, ring, pos, first);
+        System.arraycopy(b, off + first, ring, 0, len - first);
+        written += len;
+
+    }
+
+    // Account for bytes that came before what's written next without keeping them, as when reading the end of a file
+    synchronized void skip(long bytes) {
+        written += bytes;
+    }
+
+    // Whatever is left in the ring, cut down to at most the last maxLines lines
+    public synchronized String getTail(int maxLines) {
+        byte[] bytes = contents();
+        int from = tailStart(bytes, maxLines);
+        return new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+    }
+
+    // Whether getTail leaves anything out
+    public synchronized boolean isTruncated(int maxLines) {
+        return written > ring.length || tailStart(contents(), maxLines) > 0;
+    }
+
+    private byte[] contents() {
+        int length = (int) Math.min(written, ring.length);
+        byte[] bytes = new byte[length];
+        int start = (int) ((written - length) % ring.length);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, bytes, 0, first);
+        System.arraycopy(ring, 0, bytes, first, length - first);
+        return bytes;
+    }
+
+    private static int tailStart(byte[] bytes, int maxLines) {
+        // Ignore a trailing newline so it doesn't count as a line of its own
+        int end = bytes.length > 0 && bytes[bytes.length - 1] == '\n' ? bytes.length - 1 : bytes.length;
+        int lines = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes[i] == '\n' && ++lines == maxLines) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+}
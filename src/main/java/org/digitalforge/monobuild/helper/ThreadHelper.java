@@ -1,5 +1,7 @@
 package org.digitalforge.monobuild.helper;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -12,6 +14,8 @@ import javax.inject.Singleton;
 @Singleton
 public class ThreadHelper {
 
+    private final Map<ExecutorService, Thread> shutdownHooks = new ConcurrentHashMap<>();
+
     public ExecutorService newThreadPool(String name, int threads) {
         ExecutorService executorService = Executors.newFixedThreadPool(threads, newThreadFactory(name));
         ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads,
@@ -19,10 +23,25 @@ public class ThreadHelper {
                 new LinkedBlockingQueue<>(),
                 newThreadFactory(name)
         );
-        Runtime.getRuntime().addShutdownHook(new Thread(executorService::shutdown));
+        Thread shutdownHook = new Thread(executorService::shutdown);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        shutdownHooks.put(executorService, shutdownHook);
         return executorService;
     }
 
+    // For a pool that's done before the process is, so its threads and its shutdown hook don't pile up
+    public void shutdown(ExecutorService executorService) {
+        executorService.shutdownNow();
+        Thread shutdownHook = shutdownHooks.remove(executorService);
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, so the hook is about to run anyway
+            }
+        }
+    }
+
     public ThreadFactory newThreadFactory(String name) {
         return new MyThreadFactory(name);
     }
@@ -0,0 +1,110 @@
+package org.digitalforge.monobuild.history;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import org.digitalforge.monobuild.Phase;
+import org.digitalforge.monobuild.Project;
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+
+// How long each project's phases took on previous runs, kept per repository under ~/.monobuild/history
+@Singleton
+public class DurationHistory {
+
+    // Used when a phase has never been timed in this repo at all
+    private static final long DEFAULT_ESTIMATE = 1000;
+
+    // Weight of the newest sample in the moving average, so one slow run doesn't dominate
+    private static final double SMOOTHING = 0.5;
+
+    private final Path historyFile;
+    private final Console console;
+
+    private Map<String, Map<String, Long>> durations;
+
+    @Inject
+    public DurationHistory(@Named("homeDir") Path homeDir,
+                           @Named("repoKey") String repoKey,
+                           Console console) {
+        this.historyFile = homeDir.resolve("history").resolve(repoKey + ".json");
+        this.console = console;
+    }
+
+    public void record(Project project, Phase phase, long millis) {
+        durations().computeIfAbsent(project.name, k -> new ConcurrentHashMap<>())
+                .merge(phase.verb, millis, (old, sample) -> Math.round(old * (1 - SMOOTHING) + sample * SMOOTHING));
+    }
+
+    public boolean contains(Project project, Phase phase) {
+        Map<String, Long> phases = durations().get(project.name);
+        return phases != null && phases.containsKey(phase.verb);
+    }
+
+    // The recorded duration, or the average of this phase across all projects when this one has never been timed
+    public long estimate(Project project, Phase phase) {
+
+        Map<String, Long> phases = durations().get(project.name);
+        if (phases != null && phases.containsKey(phase.verb)) {
+            return phases.get(phase.verb);
+        }
+
+        OptionalDouble average = durations().values().stream()
+                .filter(p -> p.containsKey(phase.verb))
+                .mapToLong(p -> p.get(phase.verb))
+                .average();
+
+        return average.isPresent() ? Math.round(average.getAsDouble()) : DEFAULT_ESTIMATE;
+
+    }
+
+    public synchronized void save() {
+
+        if (durations == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(historyFile.getParent());
+            Path tmpFile = Files.createTempFile(historyFile.getParent(), historyFile.getFileName().toString(), ".tmp");
+            JsonHelper.MAPPER.writeValue(tmpFile.toFile(), new TreeMap<>(durations));
+            Files.move(tmpFile, historyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            console.warn("Unable to save project durations to {}: {}", historyFile, e.getMessage());
+        }
+
+    }
+
+    private synchronized Map<String, Map<String, Long>> durations() {
+
+        if (durations != null) {
+            return durations;
+        }
+
+        durations = new ConcurrentHashMap<>();
+
+        if (Files.isReadable(historyFile)) {
+            try {
+                Map<String, Map<String, Long>> saved = JsonHelper.MAPPER.readValue(historyFile.toFile(), new TypeReference<>() {});
+                saved.forEach((project, phases) -> durations.put(project, new ConcurrentHashMap<>(phases)));
+            } catch (IOException e) {
+                console.warn("Ignoring unreadable project durations in {}: {}", historyFile, e.getMessage());
+            }
+        }
+
+        return durations;
+
+    }
+
+}
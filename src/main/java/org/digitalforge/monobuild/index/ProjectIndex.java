@@ -0,0 +1,144 @@
+package org.digitalforge.monobuild.index;
+
+import java.util.List;
+import java.util.Map;
+
+// What project discovery found last time, and enough about the tree to tell whether it's still true
+public class ProjectIndex {
+
+    public static final int VERSION = 1;
+
+    private int version;
+    private String key;
+    private Map<String, Long> directories;
+    private List<Entry> projects;
+
+    public int getVersion() {
+        return version;
+    }
+
+    public ProjectIndex setVersion(int version) {
+        this.version = version;
+        return this;
+    }
+
+    // Hash of everything that changes what discovery looks for: projects.txt and monobuild.json
+    public String getKey() {
+        return key;
+    }
+
+    public ProjectIndex setKey(String key) {
+        this.key = key;
+        return this;
+    }
+
+    // Modification time of every directory discovery listed, relative to the repo root. Adding or removing anything
+    // in a directory changes its modification time, so if none of these changed, discovery would find the same thing.
+    public Map<String, Long> getDirectories() {
+        return (directories != null) ? directories : Map.of();
+    }
+
+    public ProjectIndex setDirectories(Map<String, Long> directories) {
+        this.directories = directories;
+        return this;
+    }
+
+    public List<Entry> getProjects() {
+        return (projects != null) ? projects : List.of();
+    }
+
+    public ProjectIndex setProjects(List<Entry> projects) {
+        this.projects = projects;
+        return this;
+    }
+
+    public static class Entry {
+
+        private String name;
+        private String path;
+        private List<String> markers;
+        private String settingsFile;
+        private Long settingsModified;
+        private Long settingsSize;
+        private String settingsHash;
+        private List<String> includes;
+
+        public String getName() {
+            return name;
+        }
+
+        public Entry setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        // Relative to the repo root
+        public String getPath() {
+            return path;
+        }
+
+        public Entry setPath(String path) {
+            this.path = path;
+            return this;
+        }
+
+        public List<String> getMarkers() {
+            return (markers != null) ? markers : List.of();
+        }
+
+        public Entry setMarkers(List<String> markers) {
+            this.markers = markers;
+            return this;
+        }
+
+        // The settings.gradle(.kts) the includes were parsed from, with its size and modification time at the time
+        public String getSettingsFile() {
+            return settingsFile;
+        }
+
+        public Entry setSettingsFile(String settingsFile) {
+            this.settingsFile = settingsFile;
+            return this;
+        }
+
+        public Long getSettingsModified() {
+            return settingsModified;
+        }
+
+        public Entry setSettingsModified(Long settingsModified) {
+            this.settingsModified = settingsModified;
+            return this;
+        }
+
+        public Long getSettingsSize() {
+            return settingsSize;
+        }
+
+        public Entry setSettingsSize(Long settingsSize) {
+            this.settingsSize = settingsSize;
+            return this;
+        }
+
+        // Content hash of the settings file, so a file that was touched but not changed isn't parsed again
+        public String getSettingsHash() {
+            return settingsHash;
+        }
+
+        public Entry setSettingsHash(String settingsHash) {
+            this.settingsHash = settingsHash;
+            return this;
+        }
+
+        // The projects this one depends on, relative to the repo root, or null if they haven't been parsed yet
+        public List<String> getIncludes() {
+            return includes;
+        }
+
+        public Entry setIncludes(List<String> includes) {
+            this.includes = includes;
+            return this;
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.digitalforge.monobuild.index;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+
+// Keeps the project index for this repo under ~/.monobuild/index
+@Singleton
+public class ProjectIndexStore {
+
+    private final Path indexFile;
+    private final Console console;
+
+    @Inject
+    public ProjectIndexStore(@Named("homeDir") Path homeDir,
+                             @Named("repoKey") String repoKey,
+                             Console console) {
+        this.indexFile = homeDir.resolve("index").resolve(repoKey + ".json");
+        this.console = console;
+    }
+
+    // The saved index, or null if there isn't a usable one
+    public ProjectIndex load() {
+
+        if (!Files.isReadable(indexFile)) {
+            return null;
+        }
+
+        try {
+            ProjectIndex index = JsonHelper.MAPPER.readValue(indexFile.toFile(), ProjectIndex.class);
+            return (index.getVersion() == ProjectIndex.VERSION) ? index : null;
+        } catch (IOException e) {
+            console.warn("Ignoring unreadable project index {}: {}", indexFile, e.getMessage());
+            return null;
+        }
+
+    }
+
+    public void save(ProjectIndex index) {
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path tmpFile = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            JsonHelper.MAPPER.writeValue(tmpFile.toFile(), index.setVersion(ProjectIndex.VERSION));
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            console.warn("Unable to save project index to {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(indexFile);
+        } catch (IOException e) {
+            console.warn("Unable to delete project index {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+}
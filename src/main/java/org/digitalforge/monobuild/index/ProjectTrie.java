@@ -0,0 +1,120 @@
+package org.digitalforge.monobuild.index;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.digitalforge.monobuild.Project;
+
+// Maps repo-relative paths to the project that owns them, one path component per level. A lookup follows the path
+// down as far as the trie goes and keeps the deepest project it passed, so a file in a nested project belongs to the
+// nested project rather than the one around it.
+public class ProjectTrie {
+
+    private final Node root = new Node();
+
+    public ProjectTrie(Collection<Project> projects, Path repoDir) {
+        for (Project project : projects) {
+            add(project, repoDir.relativize(project.path).toString().replace('\\', '/'));
+        }
+    }
+
+    private void add(Project project, String path) {
+        Node node = root;
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                node = node.children.computeIfAbsent(path.substring(start, end), k -> new Node());
+            }
+            start = end + 1;
+        }
+        if (node.project == null) {
+            node.project = project;
+        }
+    }
+
+    // The deepest project containing this repo-relative path (as git reports it, with '/' separators), or null
+    public Project find(String path) {
+        return walk(path).project;
+    }
+
+    // Every project containing at least one of the paths. Changed files cluster in a few directories, so each
+    // directory is only walked once and the file name is checked against where that walk ended.
+    public Set<Project> findAll(Collection<String> paths) {
+
+        Map<String, Lookup> byDirectory = new HashMap<>();
+        Set<Project> found = new HashSet<>();
+
+        for (String path : paths) {
+
+            int slash = path.lastIndexOf('/');
+            Lookup dir = byDirectory.computeIfAbsent(slash < 0 ? "" : path.substring(0, slash), this::walk);
+
+            Project project = dir.project;
+            if (dir.node != null) {
+                // The path itself may be a project directory, e.g. a submodule
+                Node node = dir.node.children.get(path.substring(slash + 1));
+                if (node != null && node.project != null) {
+                    project = node.project;
+                }
+            }
+
+            if (project != null) {
+                found.add(project);
+            }
+
+        }
+
+        return found;
+
+    }
+
+    private Lookup walk(String path) {
+        Node node = root;
+        Project found = root.project;
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                node = node.children.get(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.project != null) {
+                    found = node.project;
+                }
+            }
+            start = end + 1;
+        }
+        return new Lookup(node, found);
+    }
+
+    // Where a walk ended (null if it left the trie) and the deepest project it passed on the way
+    private static class Lookup {
+
+        private final Node node;
+        private final Project project;
+
+        private Lookup(Node node, Project project) {
+            this.node = node;
+            this.project = project;
+        }
+
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Project project;
+    }
+
+}
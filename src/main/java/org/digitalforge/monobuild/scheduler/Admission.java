@@ -0,0 +1,10 @@
+package org.digitalforge.monobuild.scheduler;
+
+// Decides whether a ready node may start right now. Every node that was admitted is released once it finishes.
+public interface Admission<T> {
+
+    boolean tryAcquire(T node);
+
+    void release(T node);
+
+}
@@ -0,0 +1,18 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.List;
+import java.util.Map;
+
+// Lets a TaskScheduler run several ready nodes as one task. Nodes with equal, non-null keys that are ready at the same
+// time share a run and a single parallelism slot; each one still finishes, fails and releases its dependents on its own.
+public interface Batcher<T> {
+
+    // Nodes with the same key may share a run; null means the node always runs alone
+    Object key(T node);
+
+    int maxSize();
+
+    // Run the nodes together, returning what each node that failed threw. A throw fails the whole batch.
+    Map<T, Throwable> run(List<T> nodes);
+
+}
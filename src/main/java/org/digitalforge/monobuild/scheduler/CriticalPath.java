@@ -0,0 +1,125 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+// The longest remaining path from each node to the end of the graph, using estimated durations as node weights.
+// Starting the nodes with the longest remaining path first keeps long chains from queueing behind short leaves.
+public class CriticalPath<T> {
+
+    private final TaskGraph<T> graph;
+    private final Map<T, Long> weights = new HashMap<>();
+    private final Map<T, Long> remaining = new HashMap<>();
+
+    public CriticalPath(TaskGraph<T> graph, ToLongFunction<T> weight) {
+
+        this.graph = graph;
+
+        for (T node : graph.getNodes()) {
+            weights.put(node, Math.max(0, weight.applyAsLong(node)));
+        }
+
+        // Walk in reverse topological order so every dependent is done before the nodes it depends on
+        List<T> order = topologicalOrder();
+        for (int i = order.size() - 1; i >= 0; i--) {
+            T node = order.get(i);
+            long longest = 0;
+            for (T dependent : graph.getDependents(node)) {
+                longest = Math.max(longest, remaining.get(dependent));
+            }
+            remaining.put(node, weights.get(node) + longest);
+        }
+
+    }
+
+    // Estimated time from starting this node until everything downstream of it has finished
+    public long getRemaining(T node) {
+        return remaining.getOrDefault(node, 0L);
+    }
+
+    // Simulate running the graph with the given parallelism, always starting the ready node with the longest
+    // remaining path first, and return the estimated wall time
+    public long predictMakespan(int parallelism) {
+
+        Map<T, Integer> pending = new HashMap<>();
+        PriorityQueue<T> ready = new PriorityQueue<>(Comparator.comparingLong(this::getRemaining).reversed());
+        for (T node : graph.getNodes()) {
+            int dependencies = graph.getDependencies(node).size();
+            pending.put(node, dependencies);
+            if (dependencies == 0) {
+                ready.add(node);
+            }
+        }
+
+        PriorityQueue<Running<T>> running = new PriorityQueue<>(Comparator.comparingLong(r -> r.finish));
+        long now = 0;
+
+        while (!ready.isEmpty() || !running.isEmpty()) {
+
+            while (running.size() < Math.max(1, parallelism) && !ready.isEmpty()) {
+                T node = ready.poll();
+                running.add(new Running<>(node, now + weights.get(node)));
+            }
+
+            Running<T> next = running.poll();
+            now = next.finish;
+
+            for (T dependent : graph.getDependents(next.node)) {
+                if (pending.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+
+        }
+
+        return now;
+
+    }
+
+    private List<T> topologicalOrder() {
+
+        Map<T, Integer> pending = new HashMap<>();
+        Deque<T> queue = new ArrayDeque<>();
+        for (T node : graph.getNodes()) {
+            int dependencies = graph.getDependencies(node).size();
+            pending.put(node, dependencies);
+            if (dependencies == 0) {
+                queue.add(node);
+            }
+        }
+
+        List<T> order = new ArrayList<>(graph.size());
+        while (!queue.isEmpty()) {
+            T node = queue.poll();
+            order.add(node);
+            for (T dependent : graph.getDependents(node)) {
+                if (pending.merge(dependent, -1, Integer::sum) == 0) {
+                    queue.add(dependent);
+                }
+            }
+        }
+
+        return order;
+
+    }
+
+    private static class Running<T> {
+
+        private final T node;
+        private final long finish;
+
+        private Running(T node, long finish) {
+            this.node = node;
+            this.finish = finish;
+        }
+
+    }
+
+}
@@ -0,0 +1,12 @@
+package org.digitalforge.monobuild.scheduler;
+
+// What a TaskScheduler does once a node fails
+public enum FailurePolicy {
+
+    // Start nothing new and interrupt every node that's still running
+    FAIL_FAST,
+
+    // Skip everything that depends on the failed node and keep running everything else
+    KEEP_GOING
+
+}
@@ -0,0 +1,69 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.digitalforge.monobuild.helper.SystemHelper;
+import org.digitalforge.monobuild.helper.ThreadHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+
+// Periodically compares the system load average to the available CPUs and nudges a scheduler's parallelism down while
+// the machine is saturated, and back up towards the maximum once it has headroom again
+public class LoadController implements AutoCloseable {
+
+    private static final long INTERVAL_SECONDS = 5;
+
+    // Back off once the run queue is longer than the CPUs, grow again once it drops well below
+    private static final double SATURATED = 1.0;
+    private static final double IDLE = 0.75;
+
+    private final TaskScheduler<?> scheduler;
+    private final SystemHelper systemHelper;
+    private final Console console;
+    private final int maxParallelism;
+    private final ScheduledExecutorService executor;
+
+    public LoadController(TaskScheduler<?> scheduler, int maxParallelism, SystemHelper systemHelper, ThreadHelper threadHelper, Console console) {
+        this.scheduler = scheduler;
+        this.systemHelper = systemHelper;
+        this.console = console;
+        this.maxParallelism = maxParallelism;
+        this.executor = Executors.newSingleThreadScheduledExecutor(threadHelper.newThreadFactory("load"));
+        this.executor.scheduleWithFixedDelay(this::adjust, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void adjust() {
+
+        if (scheduler.isDone()) {
+            return;
+        }
+
+        double load = systemHelper.getLoadAverage();
+        if (load < 0) {
+            return;
+        }
+
+        int cpus = systemHelper.getAvailableCpus();
+        int current = scheduler.getParallelism();
+        int next = current;
+
+        if (load > cpus * SATURATED && current > 1) {
+            next = current - 1;
+        } else if (load < cpus * IDLE && current < maxParallelism) {
+            next = current + 1;
+        }
+
+        if (next != current) {
+            scheduler.setParallelism(next);
+            console.infoLeftRight("Parallelism (load %.1f)", load, next);
+        }
+
+    }
+
+}
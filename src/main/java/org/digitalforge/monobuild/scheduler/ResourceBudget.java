@@ -0,0 +1,82 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+// Admits a node only when its CPU and memory weight fit in what's left of the budget and none of its exclusive
+// resources are held by another node. A request bigger than the whole budget is clamped to it, so it can still run
+// once everything else has finished.
+public class ResourceBudget<T> implements Admission<T> {
+
+    // Fractional CPU weights shouldn't be refused over floating point rounding
+    private static final double EPSILON = 1e-9;
+
+    private final double cpuBudget;
+    private final long memoryBudget;
+    private final Function<T, Request> requests;
+
+    private double cpuUsed;
+    private long memoryUsed;
+    private final Set<String> held = new HashSet<>();
+
+    public ResourceBudget(double cpuBudget, long memoryBudget, Function<T, Request> requests) {
+        this.cpuBudget = cpuBudget;
+        this.memoryBudget = memoryBudget;
+        this.requests = requests;
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(T node) {
+
+        Request request = requests.apply(node);
+        double cpu = Math.min(request.cpu, cpuBudget);
+        long memory = Math.min(request.memory, memoryBudget);
+
+        if (cpuUsed + cpu > cpuBudget + EPSILON || memoryUsed + memory > memoryBudget) {
+            return false;
+        }
+        for (String resource : request.resources) {
+            if (held.contains(resource)) {
+                return false;
+            }
+        }
+
+        cpuUsed += cpu;
+        memoryUsed += memory;
+        held.addAll(request.resources);
+        return true;
+
+    }
+
+    @Override
+    public synchronized void release(T node) {
+        Request request = requests.apply(node);
+        cpuUsed = Math.max(0, cpuUsed - Math.min(request.cpu, cpuBudget));
+        memoryUsed = Math.max(0, memoryUsed - Math.min(request.memory, memoryBudget));
+        held.removeAll(request.resources);
+    }
+
+    public double getCpuBudget() {
+        return cpuBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public static class Request {
+
+        public final double cpu;
+        public final long memory;
+        public final Set<String> resources;
+
+        public Request(double cpu, long memory, Set<String> resources) {
+            this.cpu = cpu;
+            this.memory = memory;
+            this.resources = resources;
+        }
+
+    }
+
+}
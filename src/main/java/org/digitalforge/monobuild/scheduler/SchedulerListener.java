@@ -0,0 +1,14 @@
+package org.digitalforge.monobuild.scheduler;
+
+// Told about each node as it moves through a TaskScheduler. Called while the scheduler holds its lock, so keep it quick.
+public interface SchedulerListener<T> {
+
+    // All of its dependencies have finished and it's waiting for a slot
+    default void onReady(T node) {
+    }
+
+    // It's been handed to the executor
+    default void onStart(T node) {
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TaskGraph<T> {
+
+    private final Map<T, Set<T>> dependencies = new LinkedHashMap<>();
+    private final Map<T, Set<T>> dependents = new LinkedHashMap<>();
+
+    public boolean add(T node) {
+        if (dependencies.containsKey(node)) {
+            return false;
+        }
+        dependencies.put(node, new LinkedHashSet<>());
+        dependents.put(node, new LinkedHashSet<>());
+        return true;
+    }
+
+    // The node can't start until the dependency has finished
+    public void addDependency(T node, T dependency) {
+        add(node);
+        add(dependency);
+        dependencies.get(node).add(dependency);
+        dependents.get(dependency).add(node);
+    }
+
+    public boolean contains(T node) {
+        return dependencies.containsKey(node);
+    }
+
+    public Set<T> getNodes() {
+        return Collections.unmodifiableSet(dependencies.keySet());
+    }
+
+    public Set<T> getDependencies(T node) {
+        return Collections.unmodifiableSet(dependencies.getOrDefault(node, Set.of()));
+    }
+
+    public Set<T> getDependents(T node) {
+        return Collections.unmodifiableSet(dependents.getOrDefault(node, Set.of()));
+    }
+
+    public int size() {
+        return dependencies.size();
+    }
+
+}
@@ -0,0 +1,311 @@
+package org.digitalforge.monobuild.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+// Runs every node of a TaskGraph once all of its dependencies have finished, with at most `parallelism` nodes in
+// flight at a time. Ready nodes wait in the scheduler rather than the executor's queue so the scheduler decides what
+// runs next: the ready node with the highest priority, or the one that became ready first when priorities tie. An
+// optional Admission can hold a ready node back, in which case the next one in line that it admits runs instead.
+// When a node fails the FailurePolicy decides whether everything stops (in-flight nodes are interrupted) or only the
+// nodes downstream of the failure are skipped. An optional Batcher can start several ready nodes as one task.
+public class TaskScheduler<T> {
+
+    private final TaskGraph<T> graph;
+    private final Consumer<T> task;
+    private final ExecutorService executor;
+    private final ToLongFunction<T> priority;
+    private final Admission<T> admission;
+    private final FailurePolicy failurePolicy;
+    private final SchedulerListener<T> listener;
+    private final Batcher<T> batcher;
+
+    private final Map<T, Integer> remaining = new HashMap<>();
+    private final PriorityQueue<Ready<T>> ready;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Map<T, Throwable> failures = new LinkedHashMap<>();
+    private final Set<T> skipped = new LinkedHashSet<>();
+    // What each task handed to the executor runs, until it starts
+    private final Map<Runnable, List<T>> queued = new IdentityHashMap<>();
+
+    private int parallelism;
+    private long sequence;
+    private int running;
+    private int finished;
+    private boolean cancelled;
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism) {
+        this(graph, task, executor, parallelism, node -> 0);
+    }
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism, ToLongFunction<T> priority) {
+        this(graph, task, executor, parallelism, priority, null);
+    }
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism, ToLongFunction<T> priority, Admission<T> admission) {
+        this(graph, task, executor, parallelism, priority, admission, FailurePolicy.FAIL_FAST);
+    }
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism, ToLongFunction<T> priority, Admission<T> admission, FailurePolicy failurePolicy) {
+        this(graph, task, executor, parallelism, priority, admission, failurePolicy, new SchedulerListener<>() {});
+    }
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism, ToLongFunction<T> priority, Admission<T> admission, FailurePolicy failurePolicy, SchedulerListener<T> listener) {
+        this(graph, task, executor, parallelism, priority, admission, failurePolicy, listener, null);
+    }
+
+    public TaskScheduler(TaskGraph<T> graph, Consumer<T> task, ExecutorService executor, int parallelism, ToLongFunction<T> priority, Admission<T> admission, FailurePolicy failurePolicy, SchedulerListener<T> listener, Batcher<T> batcher) {
+
+        this.graph = graph;
+        this.batcher = batcher;
+        this.admission = admission;
+        this.failurePolicy = failurePolicy;
+        this.listener = listener;
+        this.task = task;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.priority = priority;
+        this.ready = new PriorityQueue<>(Comparator.<Ready<T>>comparingLong(r -> -r.priority).thenComparingLong(r -> r.sequence));
+
+        synchronized (this) {
+            for (T node : graph.getNodes()) {
+                int dependencies = graph.getDependencies(node).size();
+                remaining.put(node, dependencies);
+                if (dependencies == 0) {
+                    ready.add(new Ready<>(node, priority.applyAsLong(node), sequence++));
+                    listener.onReady(node);
+                }
+            }
+            dispatch();
+        }
+
+    }
+
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    // Raising the limit starts waiting tasks right away; lowering it lets in-flight tasks finish and holds back new ones
+    public synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        dispatch();
+    }
+
+    // Stop as if a node had failed under FAIL_FAST: nothing new starts and running nodes are interrupted
+    public synchronized void cancel() {
+        cancelAll();
+        dispatch();
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    // Returns false if the timeout elapsed first. Failed nodes don't throw from here; check getFailures().
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    // Every node that threw, in the order they failed, with what it threw
+    public synchronized Map<T, Throwable> getFailures() {
+        return new LinkedHashMap<>(failures);
+    }
+
+    // Nodes that never ran because something they depend on failed (KEEP_GOING), or were still waiting when the
+    // first failure cancelled the run (FAIL_FAST)
+    public synchronized Set<T> getSkipped() {
+        return new LinkedHashSet<>(skipped);
+    }
+
+    // Every node of a batch was admitted on its own
+    private void run(List<T> nodes) {
+
+        Map<T, Throwable> thrown = new HashMap<>();
+
+        try {
+            if (nodes.size() == 1) {
+                task.accept(nodes.get(0));
+            } else {
+                thrown.putAll(batcher.run(nodes));
+            }
+        } catch (Throwable t) {
+            for (T node : nodes) {
+                thrown.put(node, t);
+            }
+        }
+
+        synchronized (this) {
+
+            if (admission != null) {
+                for (T node : nodes) {
+                    admission.release(node);
+                }
+            }
+
+            running--;
+
+            for (T node : nodes) {
+                finished++;
+                if (thrown.containsKey(node)) {
+                    failures.put(node, thrown.get(node));
+                    if (failurePolicy == FailurePolicy.FAIL_FAST) {
+                        cancelAll();
+                    } else {
+                        skipDependents(node);
+                    }
+                } else if (!cancelled) {
+                    for (T dependent : graph.getDependents(node)) {
+                        if (remaining.merge(dependent, -1, Integer::sum) == 0 && !skipped.contains(dependent)) {
+                            ready.add(new Ready<>(dependent, priority.applyAsLong(dependent), sequence++));
+                            listener.onReady(dependent);
+                        }
+                    }
+                }
+            }
+
+            dispatch();
+
+        }
+
+    }
+
+    // Must hold the lock. Drops everything that hasn't started and interrupts everything that has; a task that's
+    // interrupted is expected to stop its work and return (or throw) promptly.
+    private void cancelAll() {
+
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+
+        for (T node : graph.getNodes()) {
+            if (remaining.get(node) > 0) {
+                skipped.add(node);
+            }
+        }
+        for (Ready<T> next : ready) {
+            skipped.add(next.node);
+        }
+        ready.clear();
+
+        // Tasks that were handed to the executor but never started will never report back
+        for (Runnable task : executor.shutdownNow()) {
+            running--;
+            List<T> nodes = queued.remove(task);
+            if (nodes != null) {
+                skipped.addAll(nodes);
+            }
+        }
+
+    }
+
+    // Must hold the lock
+    private void skipDependents(T node) {
+        Deque<T> queue = new ArrayDeque<>(graph.getDependents(node));
+        while (!queue.isEmpty()) {
+            T dependent = queue.poll();
+            if (skipped.add(dependent)) {
+                finished++;
+                queue.addAll(graph.getDependents(dependent));
+            }
+        }
+    }
+
+    // Must hold the lock
+    private void dispatch() {
+
+        List<Ready<T>> refused = new ArrayList<>();
+        while (!cancelled && running < parallelism && !ready.isEmpty()) {
+            Ready<T> next = ready.poll();
+            if (admission != null && !admission.tryAcquire(next.node)) {
+                refused.add(next);
+                continue;
+            }
+            List<T> nodes = batch(next.node);
+            running++;
+            for (T node : nodes) {
+                listener.onStart(node);
+            }
+            Runnable launch = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TaskScheduler.this) {
+                        queued.remove(this);
+                    }
+                    TaskScheduler.this.run(nodes);
+                }
+            };
+            queued.put(launch, nodes);
+            executor.execute(launch);
+        }
+        ready.addAll(refused);
+
+        if (running == 0 && (cancelled || finished == graph.size())) {
+            executor.shutdown();
+            done.countDown();
+        }
+
+    }
+
+    // Must hold the lock. The node, plus whatever else is ready that its batch key lets it take along, in priority
+    // order. Each node taken along must be admitted too, so a batch never runs on top of a saturated budget.
+    private List<T> batch(T node) {
+
+        List<T> nodes = new ArrayList<>();
+        nodes.add(node);
+
+        Object key = (batcher != null) ? batcher.key(node) : null;
+        if (key == null) {
+            return nodes;
+        }
+
+        List<Ready<T>> others = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            Ready<T> other = ready.poll();
+            if (nodes.size() < batcher.maxSize() && key.equals(batcher.key(other.node))
+                    && (admission == null || admission.tryAcquire(other.node))) {
+                nodes.add(other.node);
+            } else {
+                others.add(other);
+            }
+        }
+        ready.addAll(others);
+
+        return nodes;
+
+    }
+
+    private static class Ready<T> {
+
+        private final T node;
+        private final long priority;
+        private final long sequence;
+
+        private Ready(T node, long priority, long sequence) {
+            this.node = node;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.digitalforge.monobuild.trace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.digitalforge.monobuild.helper.JsonHelper;
+import org.digitalforge.monobuild.logging.console.Console;
+
+// Collects a timeline of the run in Chrome's trace event format, for chrome://tracing or ui.perfetto.dev. Spans on a
+// thread nest by time on that thread's track; waits that don't belong to a thread (like time spent queued) are async
+// spans with tracks of their own.
+@Singleton
+public class TraceRecorder {
+
+    private static final int PID = 1;
+
+    private final Path traceFile;
+    private final Console console;
+
+    private final Queue<Map<String, Object>> events = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threads = new ConcurrentHashMap<>();
+    private final AtomicLong asyncIds = new AtomicLong();
+    private volatile long origin = System.nanoTime();
+
+    @Inject
+    public TraceRecorder(@Named("outputDir") Path outputDir, Console console) {
+        this.traceFile = outputDir.resolve("trace.json");
+        this.console = console;
+    }
+
+    // Forget everything recorded so far, e.g. before each command in a long-lived process
+    public void reset() {
+        events.clear();
+        threads.clear();
+        origin = System.nanoTime();
+    }
+
+    public Span start(String name, String category) {
+        return new Span(name, category, System.nanoTime());
+    }
+
+    // A span on the current thread's track that has already happened, between two System.nanoTime() readings
+    public void complete(String name, String category, long startNanos, long endNanos) {
+        Map<String, Object> event = event(name, category, "X", startNanos);
+        event.put("dur", (endNanos - startNanos) / 1000.0);
+        events.add(event);
+    }
+
+    // A span on no thread's track, between two System.nanoTime() readings
+    public void async(String name, String category, long startNanos, long endNanos) {
+
+        long id = asyncIds.incrementAndGet();
+
+        Map<String, Object> begin = event(name, category, "b", startNanos);
+        begin.put("id", id);
+        events.add(begin);
+
+        Map<String, Object> end = event(name, category, "e", endNanos);
+        end.put("id", id);
+        events.add(end);
+
+    }
+
+    public Path getTraceFile() {
+        return traceFile;
+    }
+
+    public void write() {
+
+        List<Map<String, Object>> traceEvents = new ArrayList<>();
+        threads.forEach((tid, name) -> {
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            metadata.put("name", "thread_name");
+            metadata.put("ph", "M");
+            metadata.put("pid", PID);
+            metadata.put("tid", tid);
+            metadata.put("args", Map.of("name", name));
+            traceEvents.add(metadata);
+        });
+        traceEvents.addAll(events);
+
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceEvents", traceEvents);
+        trace.put("displayTimeUnit", "ms");
+
+        try {
+            Files.createDirectories(traceFile.getParent());
+            JsonHelper.MAPPER.writeValue(traceFile.toFile(), trace);
+        } catch (IOException e) {
+            console.warn("Unable to write trace to {}: {}", traceFile, e.getMessage());
+        }
+
+    }
+
+    private Map<String, Object> event(String name, String category, String phase, long nanos) {
+        Thread thread = Thread.currentThread();
+        threads.putIfAbsent(thread.getId(), thread.getName());
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("name", name);
+        event.put("cat", category);
+        event.put("ph", phase);
+        event.put("ts", (nanos - origin) / 1000.0);
+        event.put("pid", PID);
+        event.put("tid", thread.getId());
+        return event;
+    }
+
+    // A span on the current thread's track, recorded when it's ended
+    public class Span implements AutoCloseable {
+
+        private final String name;
+        private final String category;
+        private final long start;
+        private final Map<String, Object> args = new LinkedHashMap<>();
+
+        private Span(String name, String category, long start) {
+            this.name = name;
+            this.category = category;
+            this.start = start;
+        }
+
+        public Span arg(String key, Object value) {
+            args.put(key, value);
+            return this;
+        }
+
+        public void end() {
+            Map<String, Object> event = event(name, category, "X", start);
+            event.put("dur", (System.nanoTime() - start) / 1000.0);
+            if (!args.isEmpty()) {
+                event.put("args", args);
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.digitalforge.monobuild.watch;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+// Watches every directory under the given project roots (skipping ignored directory names, such as build output) and
+// hands back changes in batches: a batch ends once nothing has changed for the quiet period. WatchService isn't
+// recursive, so new directories are registered as they appear.
+public class ProjectWatcher implements AutoCloseable {
+
+    private final Path repoDir;
+    private final Set<String> ignoredDirectories;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    public ProjectWatcher(Path repoDir, Collection<Path> roots, Set<String> ignoredDirectories) throws IOException {
+
+        this.repoDir = repoDir;
+        this.ignoredDirectories = ignoredDirectories;
+        this.watchService = repoDir.getFileSystem().newWatchService();
+
+        for (Path root : roots) {
+            register(root);
+        }
+
+    }
+
+    public int getDirectoryCount() {
+        return keys.size();
+    }
+
+    // Blocks until something changes, then keeps collecting until quietMillis pass without another change. Returns
+    // the changed paths relative to the repo root, with '/' separators like git reports them.
+    public Set<String> awaitChanges(long quietMillis) throws InterruptedException {
+
+        Set<String> changed = new TreeSet<>();
+
+        WatchKey key = watchService.take();
+        while (key != null) {
+            collect(key, changed);
+            key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return changed;
+
+    }
+
+    private void collect(WatchKey key, Set<String> changed) {
+
+        Path dir = keys.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+
+            if (dir == null) {
+                continue;
+            }
+
+            // Events were lost, so anything under the directory may have changed, including new directories to watch
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                try {
+                    register(dir);
+                } catch (IOException e) {
+                    // Gone already
+                }
+                changed.add(relativize(dir));
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            if (ignoredDirectories.contains(path.getFileName().toString())) {
+                continue;
+            }
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    register(path);
+                } catch (IOException e) {
+                    // Gone again already
+                }
+            }
+
+            changed.add(relativize(path));
+
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+
+    }
+
+    private String relativize(Path path) {
+        return repoDir.relativize(path).toString().replace('\\', '/');
+    }
+
+    private void register(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && ignoredDirectories.contains(dir.getFileName().toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+}
@@ -0,0 +1,16 @@
+package org.digitalforge.monobuild.helper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Java 21 version of SupervisorThreads, packaged under META-INF/versions/21: one virtual thread per blocked process
+public final class SupervisorThreads {
+
+    private SupervisorThreads() {
+    }
+
+    public static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("monobuild-supervisor-", 1).factory());
+    }
+
+}